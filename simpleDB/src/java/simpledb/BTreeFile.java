@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -18,12 +19,16 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements DbFile, PageDecoder {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// 本文件的I/O句柄，所有读写都通过它完成
+	private final PageIO.Handle io;
+	// 为true时直接从文件的内存映射里读页
+	private volatile boolean mapped = PageIO.MAP_DEFAULT;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,8 +43,23 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.io = PageIO.open(f);
 	}
 	
+	/**
+	 * Choose whether pages are read through a read-only memory mapping of the
+	 * file. Leaf pages are parsed straight out of the mapping; the other pages
+	 * are copied out of it. Writes always take the normal path. The default
+	 * is set with the system property simpledb.mmap.
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	public boolean isMemoryMapped() {
+		return mapped;
+	}
+
 	/**
 	 * Returns the File backing this BTreeFile on disk.
 	 */
@@ -78,13 +98,16 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
+			if (mapped) {
+				Page p = readMappedPage(id);
+				if (p != null)
+					return p;
+			}
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = io.read(0, ByteBuffer.wrap(pageBuf));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -98,12 +121,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = io.read(pageOffset(id.getPageNumber()), ByteBuffer.wrap(pageBuf));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -127,17 +145,51 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Read a page from the memory mapping of the file, or return null if it
+	 * lies past the end of the file so that the caller reports the error.
+	 */
+	private Page readMappedPage(BTreePageId id) throws IOException {
+		ByteBuffer view;
+		if(id.pgcateg() == BTreePageId.ROOT_PTR)
+			view = io.view(0, BTreeRootPtrPage.getPageSize());
+		else
+			view = io.view(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+		if (view == null)
+			return null;
+		return decodePage(id, view);
+	}
+
+	/**
+	 * Build a page from its on-disk image. Leaf pages are parsed straight out
+	 * of data; the other pages are copied out of it first.
+	 */
+	public Page decodePage(PageId pid, ByteBuffer data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		if(id.pgcateg() == BTreePageId.LEAF)
+			return new BTreeLeafPage(id, data, keyField);
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
+			data.get(pageBuf);
+			return new BTreeRootPtrPage(id, pageBuf);
+		}
+		byte pageBuf[] = new byte[BufferPool.getPageSize()];
+		data.get(pageBuf);
+		if(id.pgcateg() == BTreePageId.INTERNAL)
+			return new BTreeInternalPage(id, pageBuf, keyField);
+		return new BTreeHeaderPage(id, pageBuf);
+	}
+
+	/** The file offset of the page with the given number; 0 is the root pointer page */
+	private static long pageOffset(int pageNo) {
+		if (pageNo == 0)
+			return 0;
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,15 +200,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			io.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			io.write(pageOffset(page.getId().getPageNumber()), data);
 		}
 	}
 	
@@ -314,7 +362,7 @@ public class BTreeFile implements DbFile {
 		
 		//如果原来的页有左兄弟，那么要把较小页newpage作为它新的右兄弟
 		if(page.getLeftSiblingId()!=null) {
-			BTreeLeafPage sibling=(BTreeLeafPage) this.getPage(tid, dirtypages,page.getLeftSiblingId(),Permissions.READ_ONLY);
+			BTreeLeafPage sibling=(BTreeLeafPage) this.getPage(tid, dirtypages,page.getLeftSiblingId(),Permissions.READ_WRITE);
 			sibling.setRightSiblingId(newPage.getId());
 		}		
 		newPage.setLeftSiblingId(page.getLeftSiblingId()); //小页newPage的左兄弟就是原来页的左兄弟
@@ -864,7 +912,7 @@ public class BTreeFile implements DbFile {
 		}
 		 //如果将要被删除的右页右侧还有兄弟，要把指针让给将要被删除页的左兄弟
 		if(rightPage.getRightSiblingId()!=null) {
-			BTreeLeafPage sibling=(BTreeLeafPage) this.getPage(tid, dirtypages, rightPage.getRightSiblingId(), Permissions.READ_ONLY);
+			BTreeLeafPage sibling=(BTreeLeafPage) this.getPage(tid, dirtypages, rightPage.getRightSiblingId(), Permissions.READ_WRITE);
 			sibling.setLeftSiblingId(leftPage.getId());
 		}
 		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
@@ -1008,13 +1056,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				io.write(0, emptyRootPtrData);
+				io.write(emptyRootPtrData.length, emptyLeafData);
 			}
 		}
 
@@ -1070,11 +1115,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				io.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1105,10 +1147,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		io.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1248,6 +1287,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// 叶子页通过扫描环读入，内部节点仍走缓冲池
+	BufferRing ring = null;
+	// 距离下一次提交预读还要前进的叶子页数
+	int untilReadAhead = 0;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1269,6 +1312,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		ring = Database.getBufferPool().newScanRing(f.numPages());
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
@@ -1291,7 +1335,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				readAhead();
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1303,6 +1348,19 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		return it.next();
 	}
 
+	/**
+	 * Once the scan has moved on to a sibling leaf, keep the following
+	 * leaves read ahead of it in the background.
+	 */
+	private void readAhead() {
+		Prefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+		int window = prefetcher.window(ring);
+		if (window == 0 || --untilReadAhead > 0)
+			return;
+		prefetcher.prefetchLeaves(f, curp.getRightSiblingId(), window, true, ring);
+		untilReadAhead = Math.max(1, window / 2);
+	}
+
 	/**
 	 * rewind this iterator back to the beginning of the tuples
 	 */
@@ -1318,6 +1376,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		untilReadAhead = 0;
+		if (ring != null) {
+			Database.getBufferPool().releaseScanRing(ring);
+			ring = null;
+		}
 	}
 }
 
@@ -1528,6 +1591,10 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// 叶子页通过扫描环读入，内部节点仍走缓冲池
+	BufferRing ring = null;
+	// 距离下一次提交预读还要前进的叶子页数
+	int untilReadAhead = 0;
 	TransactionId tid;
 	BTreeFile f;
 
@@ -1549,6 +1616,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		ring = Database.getBufferPool().newScanRing(f.numPages());
 		curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.reverseIterator();
 	}
@@ -1571,7 +1639,8 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 				curp = null;
 			} else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				readAhead();
 				it = curp.reverseIterator();
 				if (!it.hasNext())
 					it = null;
@@ -1583,6 +1652,19 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 		return it.next();
 	}
 
+	/**
+	 * Once the scan has moved on to a sibling leaf, keep the following
+	 * leaves read ahead of it in the background.
+	 */
+	private void readAhead() {
+		Prefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+		int window = prefetcher.window(ring);
+		if (window == 0 || --untilReadAhead > 0)
+			return;
+		prefetcher.prefetchLeaves(f, curp.getLeftSiblingId(), window, false, ring);
+		untilReadAhead = Math.max(1, window / 2);
+	}
+
 	/**
 	 * rewind this iterator back to the beginning of the tuples
 	 */
@@ -1598,6 +1680,11 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		untilReadAhead = 0;
+		if (ring != null) {
+			Database.getBufferPool().releaseScanRing(ring);
+			ring = null;
+		}
 	}
 }
 
@@ -12,6 +12,7 @@ import java.io.*;
  */
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
+	private volatile long lsn = -1;
 	private volatile TransactionId dirtier = null;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
@@ -264,6 +265,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
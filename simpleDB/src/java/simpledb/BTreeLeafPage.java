@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -62,9 +63,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, new DataInputStream(new ByteArrayInputStream(data)), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage by parsing the page straight out of a buffer,
+	 * such as a view of a memory mapped file, without copying it first.
+	 *
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
+		this(id, new DataInputStream(PageIO.inputStream(data)), key);
+	}
+
+	private BTreeLeafPage(BTreePageId id, DataInputStream dis, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
 		try {
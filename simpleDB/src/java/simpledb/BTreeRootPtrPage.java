@@ -13,6 +13,7 @@ public class BTreeRootPtrPage implements Page {
 	public final static int PAGE_SIZE = 9;
 
 	private boolean dirty = false;
+	private volatile long lsn = -1;
 	private TransactionId dirtier = null;
 
 	private BTreePageId pid;
@@ -138,6 +139,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
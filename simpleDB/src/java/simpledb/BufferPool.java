@@ -4,6 +4,10 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import simpledb.LockManager.LockMode;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,15 +17,125 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in frames of a concurrent page table keyed by PageId.
+ * Lookups never take a lock, so cache hits from many threads do not contend
+ * with each other or with eviction; a miss installs a placeholder frame
+ * first, so that concurrent misses on the same page wait for a single read.
+ * <p>
+ * Which page to evict is decided by an {@link EvictionPolicy}, chosen with
+ * the system property simpledb.evictionPolicy (clock, lru-k or 2q; clock by
+ * default). Hits, misses and evictions are counted for tuning. Large
+ * sequential scans read through a private {@link BufferRing} instead, so
+ * that they recycle a few frames of their own rather than evicting the hot
+ * pages of the pool, and a {@link Prefetcher} reads pages ahead of them in
+ * the background.
+ * <p>
+ * Optionally, clean pages evicted from the pool are kept off the Java heap
+ * in a {@link PageArena} of simpledb.offHeapPages frames, and a miss is
+ * served from there before going to disk.
+ * <p>
+ * Each frame remembers the LSN of the first update logged for its page
+ * since the page was last written (its recLSN). These make up the dirty
+ * page table recorded by fuzzy checkpoints, whose pages a {@link PageWriter}
+ * then writes back in the background. The same writer keeps a fraction of
+ * the pool clean by writing the pages of completed transactions.
+ * <p>
+ * By default the pool is FORCE/NO STEAL: a commit writes the pages of the
+ * transaction, and pages of running transactions are never written. With
+ * {@link #setStealNoForce} (or the system property simpledb.stealNoForce) a
+ * commit only logs its pages, which stay in memory until they are evicted or
+ * written back, and eviction may write dirty pages of running transactions;
+ * the log undoes and redoes them (see {@link LogFile#recover}).
+ * <p>
+ * By default transactions lock whole pages. With {@link #setRowLocking} (or
+ * the system property simpledb.rowLocks) HeapFile inserts and deletes take
+ * an IX lock on the page and an exclusive lock on the tuple's RecordId
+ * instead, so that several transactions can change different tuples of one
+ * page. A page's monitor then latches it while a tuple changes, and each
+ * change is logged right away as an update of its own transaction; an abort
+ * undoes the transaction's tuple changes in place rather than restoring
+ * whole pages, and rollback and recovery undo deltas bit by bit (see
+ * {@link PageDelta#undo}).
+ * <p>
+ * Locks are hierarchical: before locking a page, a transaction takes the
+ * matching intention lock (IS or IX) on its table, and no page lock at all
+ * when it already holds a table lock that covers the page. Once a
+ * transaction holds more than simpledb.lockEscalation page locks in one
+ * table, they are escalated to a single S or X lock on the table if no
+ * other transaction is in the way; HeapFile scans of tables larger than
+ * that lock the table up front.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    private int numPages;
+    private final int numPages;
+
+    private final ConcurrentHashMap<PageId,Frame> frames;
+
+    private final LockManager lockManager;
+
+    private final EvictionPolicy policy;
+
+    private final Prefetcher prefetcher;
+
+    private final PageWriter writer;
+
+    private volatile boolean stealNoForce = Boolean.getBoolean("simpledb.stealNoForce");
+
+    private volatile boolean rowLocking = Boolean.getBoolean("simpledb.rowLocks");
+
+    /** A tuple inserted, or deleted if deleted is not null, in row locking mode. */
+    private static class RowChange {
+        final RecordId rid;
+        final Tuple deleted;
+
+        RowChange(RecordId rid, Tuple deleted) {
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+    }
+
+    // 每个事务在每个表上持有的页锁数，超过升级阈值时换成表锁
+    private final ConcurrentHashMap<TransactionId,Map<Integer,Integer>> pageLocks =
+            new ConcurrentHashMap<TransactionId,Map<Integer,Integer>>();
 
-    private HashMap<PageId,Page> pages;
+    private volatile int lockEscalation = LOCK_ESCALATION;
 
-    private LockManager lockManager;
+    private final LongAdder escalations = new LongAdder();
+
+    // 行锁模式下每个事务改过的元组，中止时倒序撤销
+    private final ConcurrentHashMap<TransactionId,List<RowChange>> rowChanges =
+            new ConcurrentHashMap<TransactionId,List<RowChange>>();
+
+    // 堆外的第二级缓存，为null表示不启用
+    private final PageArena arena;
+
+    // 命中次数在所有线程的热路径上更新，用LongAdder避免争用同一个计数器
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder offHeapHits = new LongAdder();
+
+    // STEAL模式下干净页不够时，没有钉住的脏页也可以写出后换出
+    private final EvictionPolicy.Candidates stealable = new EvictionPolicy.Candidates() {
+        public boolean isEvictable(PageId pid) {
+            Frame frame = frames.get(pid);
+            return frame == null || (frame.page != null && !frame.isPinned());
+        }
+    };
+
+    // 告诉替换策略哪些页可以换出：正在读入或写出的帧、脏页都不能换出
+    private final EvictionPolicy.Candidates evictable = new EvictionPolicy.Candidates() {
+        public boolean isEvictable(PageId pid) {
+            Frame frame = frames.get(pid);
+            if (frame == null)
+                return true;
+            Page page = frame.page;
+            return page != null && !frame.isPinned() && page.isDirty() == null;
+        }
+    };
 
     /** Bytes per page, including header. */
 
@@ -34,117 +148,141 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-//******************************新增的数据结构*************************
-    public class Lock{
-        public TransactionId tid; //事务id
-        public boolean isShared; //是不是共享锁
+    /** Longest time getPage waits for a lock before aborting, in ms; 0 waits
+    until the lock is granted or the deadlock detector picks the transaction
+    as a victim. Set with the system property simpledb.lockTimeout. */
+    private static final long LOCK_TIMEOUT = Long.getLong("simpledb.lockTimeout", 0);
+
+    /** Fraction of the pool the {@link PageWriter} keeps free of dirty
+    pages, so that eviction finds clean victims. Set with the system
+    property simpledb.cleanFraction; 0 disables cleaning. */
+    public static final double CLEAN_FRACTION = Math.min(1.0, Math.max(0.0,
+            Double.parseDouble(System.getProperty("simpledb.cleanFraction", "0.2"))));
+
+    /** Number of page locks a transaction may hold in one table before
+    they are escalated to a table lock. Set with the system property
+    simpledb.lockEscalation. */
+    public static final int LOCK_ESCALATION = Integer.getInteger("simpledb.lockEscalation", 1000);
 
-        public Lock(TransactionId tid,boolean isShared){
-            this.tid = tid;
-            this.isShared = isShared;
+    /** How long the page writer waits for a shared lock on a page, in ms. */
+    private static final long WRITER_LOCK_TIMEOUT = 1;
+
+    /** Marks a page as dirty when all of its contents are already logged,
+    such as a page an abort put back to its last logged image: it is
+    written without a new update record, so that no transaction that has
+    already ended is logged again. */
+    static final TransactionId LOGGED = new TransactionId(-1);
+
+    /**
+     * A slot of the page table. While a miss is being served the frame is
+     * installed with no page yet, and other threads asking for the same page
+     * wait on the frame until the read completes. The pin count is non-zero
+     * while the frame is being loaded or written out; pinned frames are
+     * never evicted.
+     */
+    static class Frame {
+        final PageId pid;
+        volatile Page page;
+        // 读入此页的扫描环；为null表示该页由替换策略管理
+        volatile BufferRing ring;
+        // 上次写出后第一条更新记录的LSN，-1表示日志里没有未写出的更新
+        volatile long recLSN = -1;
+        private boolean loading; // protected by this
+        private final AtomicInteger pinCount = new AtomicInteger(0);
+
+        /** A frame whose page is about to be read from disk. */
+        Frame(PageId pid) {
+            this.pid = pid;
+            this.loading = true;
         }
-    }
 
-    public class LockManager{
-        ConcurrentHashMap<PageId,ArrayList<BufferPool.Lock>> lockMap; //ConcurrentHashMap线程安全
+        /** A frame holding a page that is already in memory. */
+        Frame(PageId pid, Page page) {
+            this.pid = pid;
+            this.page = page;
+            this.loading = false;
+        }
 
-        public LockManager(){
-            lockMap = new ConcurrentHashMap<PageId,ArrayList<BufferPool.Lock>>();
+        void pin() {
+            pinCount.incrementAndGet();
         }
 
-        public synchronized boolean acquireLock(PageId pid,TransactionId tid,boolean isShared) {
-            //此页无锁则添加一个锁
-            if (lockMap.get(pid) == null) {
-                Lock lock = new Lock(tid, isShared);
-                ArrayList<Lock> locks = new ArrayList<BufferPool.Lock>();
-                locks.add(lock);
-                lockMap.put(pid, locks);
-                return true;
-            }      
-            //如果页面有锁，分为事务取得锁或事务未取得锁
-            ArrayList lockList = lockMap.get(pid);
-            for (Object o : lockList) { //遍历锁列表
-                Lock lock = (Lock) o;
-                if (lock.tid == tid) { //如果能找到tid相同的锁，证明该事务已经取得了当前页面的锁
-                    if (lock.isShared == isShared) //两个锁一模一样，认为获取锁成功(锁重入)
-                        return true;
-                    
-                    
-                    
-                    
-                    if (!lock.isShared) //如果请求的锁是共享锁，而已经持有了独占锁，那么也认为获取成功
-                        return true;
-                    
-                    
-                    //原来拥有共享锁
-                    if (lockList.size() == 1) { //到这里的逻辑是，tid原来拥有共享锁，现在要获取独占锁
-                        lock.isShared = false;  //如果
-
-                        
-                    } 
-                    else //否则此事务现在正在与其他事务共享一把锁，那么就不能升级为独占锁，认为获取锁失败
-                    	return false;
-                }
-            }
-            
-            
-            //事务在此之前并未获得过锁
-            if (lockList.size() == 1 && !((Lock) lockList.get(0)).isShared) //tid不同，且为独占锁，获锁失败
-                return false; 
-            
-            if (isShared) { //是共享锁，锁列表添加新锁
-                    Lock lock = new Lock(tid, true);
-                    lockList.add(lock);
-                    lockMap.put(pid, lockList);
-                    return true;
-            }
-            //页面只能获取共享锁，想获取独占锁判定失败
-            return false;
+        void unpin() {
+            pinCount.decrementAndGet();
         }
-        
-        
-        
-        
 
-        public synchronized boolean releaseLock(PageId pid,TransactionId tid){
-            if(lockMap.get(pid) == null)
-                return false;            
-            ArrayList<Lock> locks = lockMap.get(pid);
-            for(int i=0;i<locks.size();++i){
-                Lock lock = locks.get(i);
-                if(lock.tid == tid){
-                    locks.remove(lock);
-                    if(locks.size() == 0) //页面上已经没有锁了，那么就把这个映射删除
-                        lockMap.remove(pid);
-                    return true;
-                }
-            }
-            return false;
+        boolean isPinned() {
+            return pinCount.get() > 0;
         }
-        
-        //此方法判断是否持有锁
-        public synchronized boolean holdsLock(PageId pid,TransactionId tid){
-            if(lockMap.get(pid) == null)
-                return false;        
-            ArrayList<Lock> locks =  lockMap.get(pid);
-            for (int i = 0; i < locks.size(); i++) 
-                if(locks.get(i).tid == tid)
-                	return true;
-            return false;
+
+        /** Publish the page (null if the read failed) and wake up waiters. */
+        synchronized void setPage(Page page) {
+            this.page = page;
+            loading = false;
+            notifyAll();
+        }
+
+        /**
+         * Publish a page read from disk and wake up waiters, unless a newer
+         * version was installed while the read was in progress.
+         *
+         * @return the page the frame ends up holding
+         */
+        synchronized Page fill(Page page) {
+            if (this.page == null)
+                this.page = page;
+            loading = false;
+            notifyAll();
+            return this.page;
+        }
+
+        /** Wait for a pending read to finish and return its page. */
+        synchronized Page awaitPage() throws InterruptedException {
+            while (loading)
+                wait();
+            return page;
         }
     }
-    //使用依赖图的思路：在获取锁之前，检查当前事务是否已经持有其他锁。如果当前事务持有其他锁，并且存在依赖关
-    //系，需要中断其中一个锁的持有者，以打破死锁状态
-    //在释放锁之前，更新依赖图，移除当前事务与其他锁之间的依赖关系
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-       this.numPages = numPages;
-           pages = new HashMap<>();
-           lockManager = new LockManager();
+        this(numPages, EvictionPolicy.forName(System.getProperty("simpledb.evictionPolicy"), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the eviction policy, which must not be shared with
+     *   another pool
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        this(numPages, policy, Integer.getInteger("simpledb.offHeapPages", 0));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages on the heap, and
+     * up to offHeapPages more pages off the heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the eviction policy, which must not be shared with
+     *   another pool
+     * @param offHeapPages the number of frames of the off-heap arena; 0 for
+     *   no arena
+     */
+    public BufferPool(int numPages, EvictionPolicy policy, int offHeapPages) {
+        this.numPages = numPages;
+        this.policy = policy;
+        frames = new ConcurrentHashMap<PageId,Frame>();
+        lockManager = new LockManager();
+        prefetcher = new Prefetcher(this, numPages);
+        writer = new PageWriter(this);
+        arena = offHeapPages > 0 ? new PageArena(offHeapPages, pageSize) : null;
     }
 
     public static int getPageSize() {
@@ -184,47 +322,463 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException{
-        boolean isShared = (perm==Permissions.READ_ONLY ? true : false); //根据权限获取锁的类型
-        boolean lockAcquired = false; //循环条件，判断是否成功取得了锁
-        
-        
-        long start = System.currentTimeMillis();
-        long limit = new Random().nextInt(2000) + 1000; //线程获得不同的值，分散并发操作的压力
-        while(!lockAcquired){
-            long now = System.currentTimeMillis();
-            if(now-start > limit)
-                throw new TransactionAbortedException();
-            lockAcquired = lockManager.acquireLock(pid,tid,isShared);
-        }
-        
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if it has to be read from disk, read it into a frame of the given
+     * scan ring rather than one chosen by the eviction policy.
+     *
+     * @param ring the scan's buffer ring, or null to use the pool as usual
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException{
+        //根据权限获取锁的类型
+        return getPage(tid, pid, perm == Permissions.READ_ONLY ? LockMode.S : LockMode.X, ring);
+    }
+
+    /**
+     * Retrieve the specified page, locking it in the given mode; an
+     * intention mode (IS or IX) lets the caller lock tuples of the page.
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException, DbException{
+        return getPage(tid, pid, mode, null);
+    }
+
+    private Page getPage(TransactionId tid, PageId pid, LockMode mode, BufferRing ring)
+            throws TransactionAbortedException, DbException{
         if(tid == null)
         	throw new TransactionAbortedException();
-        if (this.pages.containsKey(pid))
-        	return pages.get(pid);
-        if(pages.size()>= numPages)
-        	evictPage();
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        pages.put(pid,page);
+
+        //拿不到锁时在锁队列上休眠等待；被死锁检测选为牺牲者时中止事务
+        lockPage(tid, pid, mode);
+
+        while (true) {
+            Frame frame = frames.get(pid);
+            if (frame != null) {
+                //命中：页面已经在缓冲池中，或者正在被其他线程读入
+                Page page = frame.page;
+                if (page != null) {
+                    hit(frame, ring);
+                    return page;
+                }
+                try {
+                    page = frame.awaitPage();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+                if (page != null) {
+                    hit(frame, ring);
+                    return page;
+                }
+                continue; //读取失败，占位帧已被移除，重新来过
+            }
+
+            //未命中：先放一个占位帧，保证同一页只被读一次
+            Frame fresh = new Frame(pid);
+            fresh.ring = ring;
+            fresh.pin();
+            if (frames.putIfAbsent(pid, fresh) != null)
+                continue;
+            misses.increment();
+            Page page = null;
+            try {
+                //扫描环已转满一圈时，先回收环中最旧的页，不去动池中的其他页
+                if (ring != null)
+                    recycle(ring, ring.add(pid));
+                while (frames.size() > numPages)
+                    evictPage();
+                page = loadPage(Database.getCatalog().getDatabaseFile(pid.getTableId()), pid);
+                if (ring == null)
+                    policy.pageLoaded(pid);
+            } finally {
+                if (page == null)
+                    frames.remove(pid, fresh);
+                fresh.unpin();
+                page = fresh.fill(page);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Read a page into the pool on behalf of the Prefetcher, without locking
+     * it. Pages that are cached or being read already are left alone.
+     *
+     * @return the cached page, or null if there was no room for it
+     */
+    Page prefetchPage(DbFile file, PageId pid, BufferRing ring) {
+        Frame frame = frames.get(pid);
+        if (frame != null) {
+            //正在被扫描自己读入时等它读完，B+树预读还要沿着它的兄弟指针往下走
+            try {
+                return frame.awaitPage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        Frame fresh = new Frame(pid);
+        fresh.ring = ring;
+        fresh.pin();
+        if (frames.putIfAbsent(pid, fresh) != null)
+            return null;
+        Page page = null;
+        try {
+            if (ring != null)
+                recycle(ring, ring.add(pid));
+            while (frames.size() > numPages)
+                evictPage();
+            page = loadPage(file, pid);
+            if (page != null) {
+                prefetches.increment();
+                if (ring == null)
+                    policy.pageLoaded(pid);
+            }
+        } catch (DbException e) {
+            //缓冲池中全是脏页或钉住的页，放弃预读
+        } finally {
+            if (page == null)
+                frames.remove(pid, fresh);
+            fresh.unpin();
+            page = fresh.fill(page);
+        }
         return page;
     }
-    
-    private synchronized void evictPage() throws DbException {
-        boolean allDirty = true;
-        for(Map.Entry<PageId, Page> entry : pages.entrySet()) {
-            if(entry.getValue().isDirty() != null) //如果是脏页就跳过
-            	continue;
+
+    /** Read a page from the off-heap arena if it holds it, from disk otherwise. */
+    private Page loadPage(DbFile file, PageId pid) {
+        if (arena != null && file instanceof PageDecoder) {
             try {
-                allDirty = false;
-                flushPage(entry.getKey()); //把非脏的页刷新到磁盘
+                Page page = arena.take(pid, (PageDecoder) file);
+                if (page != null) {
+                    offHeapHits.increment();
+                    return page;
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                //堆外的页解析失败，直接去读盘
+                Debug.log(1, "BufferPool: decoding %s from the arena failed: %s", pid, e);
             }
-            discardPage(entry.getKey()); //从缓冲池中删除这个页
-            break;
         }
-        if(allDirty)
-        	throw new DbException("All pages are dirty");
+        return file.readPage(pid);
     }
+
+    private void hit(Frame frame, BufferRing ring) {
+        hits.increment();
+        BufferRing owner = frame.ring;
+        if (owner == null) {
+            policy.pageAccessed(frame.pid);
+        } else if (owner != ring) {
+            //扫描环之外也有人在用这一页，交给替换策略管理
+            frame.ring = null;
+            policy.pageLoaded(frame.pid);
+        }
+    }
+
+    /**
+     * Evict a page the ring no longer remembers, if it still belongs to the
+     * ring and can be evicted; otherwise hand it over to the eviction policy.
+     */
+    private void recycle(BufferRing ring, PageId pid) {
+        if (pid == null)
+            return;
+        Frame frame = frames.get(pid);
+        if (frame == null || frame.ring != ring)
+            return;
+        if (evictable.isEvictable(pid) && frames.remove(pid, frame)) {
+            evictions.increment();
+            policy.pageRemoved(pid); //环中的页可能刚被别的线程交给了替换策略
+            return;
+        }
+        frame.ring = null;
+        policy.pageLoaded(pid);
+    }
+
+    /**
+     * Return a buffer ring for a sequential scan over a file of the given
+     * size, or null if the file fits in the pool, in which case scanning it
+     * again later should find all of it cached.
+     */
+    public BufferRing newScanRing(int filePages) {
+        if (numPages < 8 || filePages <= numPages)
+            return null;
+        return new BufferRing(Math.min(BufferRing.DEFAULT_SIZE, numPages / 4));
+    }
+
+    /**
+     * Called when a scan is done with its ring: the clean pages it still
+     * holds are evicted right away, the others are left to the pool.
+     */
+    public void releaseScanRing(BufferRing ring) {
+        for (PageId pid : ring.clear())
+            recycle(ring, pid);
+    }
+
+    /**
+     * Put a page that was modified or created in memory into the page table,
+     * replacing the cached version if there is one.
+     */
+    private void installPage(Page p) {
+        Frame frame = new Frame(p.getId(), p);
+        Frame old = frames.putIfAbsent(p.getId(), frame);
+        if (old != null) {
+            old.setPage(p);
+            if (old.ring != null) {
+                old.ring = null;
+                policy.pageLoaded(p.getId());
+            } else {
+                policy.pageAccessed(p.getId());
+            }
+        } else {
+            policy.pageLoaded(p.getId());
+        }
+    }
+
+    private void evictPage() throws DbException {
+        writer.wake(); //让后台写线程补充干净页
+        while (true) {
+            PageId victim = policy.chooseVictim(evictable);
+            if (victim == null)
+                victim = abandonedRingPage();
+            if (victim == null && stealNoForce) {
+                victim = policy.chooseVictim(stealable);
+                if (victim != null && !steal(victim))
+                    continue; //写出之后又被弄脏或钉住了，重选
+            }
+            if (victim == null)
+                throw new DbException("All pages are dirty");
+            Frame frame = frames.get(victim);
+            if (frame == null) {
+                //替换策略里残留的已不在缓冲池中的页，清掉后重选
+                policy.pageRemoved(victim);
+                continue;
+            }
+            //先放进堆外缓存再从池中删除，这样之后的未命中一定能在那里找到它
+            boolean spilled = spill(frame);
+            if (frames.remove(victim, frame)) { //从缓冲池中删除这个页
+                policy.pageRemoved(victim);
+                evictions.increment();
+                return;
+            }
+            if (spilled)
+                arena.remove(victim);
+        }
+    }
+
+    /**
+     * Write out a dirty page chosen for eviction in STEAL mode; its update
+     * is logged and forced first, so that it can be undone.
+     *
+     * @return true if the page is clean and can be evicted now
+     */
+    private synchronized boolean steal(PageId pid) throws DbException {
+        try {
+            flushPage(pid);
+        } catch (IOException e) {
+            throw new DbException("could not write page " + pid + " for eviction: " + e.getMessage());
+        }
+        return evictable.isEvictable(pid);
+    }
+
+    /** Copy the clean page of a frame that is being evicted into the arena. */
+    private boolean spill(Frame frame) {
+        Page page = frame.page;
+        if (arena == null || page == null || page.isDirty() != null)
+            return false;
+        if (!(Database.getCatalog().getDatabaseFile(frame.pid.getTableId()) instanceof PageDecoder))
+            return false;
+        return arena.put(frame.pid, page.getPageData());
+    }
+
+    /**
+     * Find a clean page left behind in the ring of a scan that was never
+     * closed. Such pages are unknown to the eviction policy.
+     */
+    private PageId abandonedRingPage() {
+        for (Frame frame : frames.values()) {
+            if (frame.ring != null && evictable.isEvictable(frame.pid))
+                return frame.pid;
+        }
+        return null;
+    }
+
+    private void lock(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        try {
+            if (!lockManager.acquireLock(key, tid, mode, LOCK_TIMEOUT))
+                throw new TransactionAbortedException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Lock a page after the matching intention lock on its table, unless a
+     * lock the transaction holds on the table already covers the page.
+     */
+    private void lockPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        Object table = LockManager.tableKey(pid.getTableId());
+        LockMode tableMode = lockManager.getLockMode(table, tid);
+        if (tableMode != null && tableMode.covers(mode))
+            return;
+        if (tableMode == null || tableMode.combine(mode.intention()) != tableMode)
+            lock(tid, table, mode.intention());
+        boolean held = lockManager.holdsLock(pid, tid);
+        lock(tid, pid, mode);
+        if (!held)
+            countPageLock(tid, pid.getTableId(), 1);
+    }
+
+    private void countPageLock(TransactionId tid, int tableId, int delta) {
+        Map<Integer,Integer> counts = pageLocks.get(tid);
+        if (counts == null) {
+            if (delta < 0)
+                return;
+            counts = new HashMap<Integer,Integer>();
+            pageLocks.put(tid, counts); //只有事务自己的线程会改它的计数
+        }
+        Integer n = counts.get(tableId);
+        int count = (n == null ? 0 : n) + delta;
+        if (count > lockEscalation && escalate(tid, tableId))
+            count = 0;
+        if (count > 0)
+            counts.put(tableId, count);
+        else
+            counts.remove(tableId);
+    }
+
+    /**
+     * Replace the transaction's page locks in a table with an S lock on the
+     * table if it only reads there, or an X lock otherwise. Gives up rather
+     * than wait if another transaction holds a conflicting lock on the table.
+     *
+     * @return true if the page locks were escalated
+     */
+    private boolean escalate(TransactionId tid, int tableId) {
+        Object table = LockManager.tableKey(tableId);
+        LockMode mode = lockManager.getLockMode(table, tid) == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!lockManager.tryLock(table, tid, mode))
+            return false; //下次再拿到新页锁时重试
+        lockManager.releasePageLocks(tid, tableId);
+        escalations.increment();
+        return true;
+    }
+
+    /**
+     * Lock a whole table, e.g. S before scanning all of it, so that its pages
+     * need no locks of their own. May block, like {@link #getPage}.
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        if (tid == null)
+            throw new TransactionAbortedException();
+        lock(tid, LockManager.tableKey(tableId), mode);
+    }
+
+    /**
+     * Lock a tuple exclusively in row locking mode, after an IX lock on its
+     * page. May block if another transaction holds the tuple.
+     */
+    public void lockRow(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        lockPage(tid, rid.getPageId(), LockMode.IX);
+        lock(tid, rid, LockMode.X);
+    }
+
+    /**
+     * Lock a tuple exclusively only if no other transaction holds it, e.g.
+     * an empty slot that an uncommitted delete freed. The caller already
+     * holds an IX lock on the page.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid) {
+        return lockManager.tryLock(rid, tid, LockMode.X);
+    }
+
+    /**
+     * Log a tuple change made in row locking mode, while the caller holds the
+     * page's monitor, as an update of the transaction from the page's last
+     * logged image, and remember it for {@link #undoRowChanges}.
+     *
+     * @param rid the tuple inserted or deleted
+     * @param deleted the deleted tuple, or null if rid was inserted
+     */
+    void logRowChange(TransactionId tid, HeapPage page, RecordId rid, Tuple deleted)
+            throws IOException {
+        logRow(tid, page);
+        List<RowChange> changes = rowChanges.get(tid);
+        if (changes == null) {
+            changes = new ArrayList<RowChange>();
+            rowChanges.put(tid, changes); //只有事务自己的线程会写它的列表
+        }
+        changes.add(new RowChange(rid, deleted));
+    }
+
+    private void logRow(TransactionId tid, HeapPage page) throws IOException {
+        Frame frame = frames.get(page.getId());
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            page.setLSN(log.logRowWrite(tid, page.getBeforeImage(), page));
+            page.setBeforeImage();
+            if (frame != null && frame.recLSN < 0)
+                frame.recLSN = page.getLSN();
+        }
+        page.markDirty(true, tid);
+    }
+
+    /**
+     * Undo the tuple changes of an aborting transaction in row locking mode,
+     * newest first, on the cached pages, logging each undo as an update of
+     * the transaction. Other transactions' changes to the same pages stay.
+     * Must not be called while holding the pool's monitor.
+     */
+    void undoRowChanges(TransactionId tid) throws IOException {
+        undoRowChanges(tid, true);
+    }
+
+    /**
+     * Undo the tuple changes of an aborting transaction in row locking
+     * mode; without log, the undone pages are not logged, and are kept
+     * dirty like pages whose contents are all logged.
+     *
+     * @see LogFile#rollbackFailed
+     */
+    void undoRowChanges(TransactionId tid, boolean log) throws IOException {
+        List<RowChange> changes = rowChanges.remove(tid);
+        if (changes == null)
+            return;
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            RowChange change = changes.get(i);
+            HeapPage page;
+            try {
+                page = (HeapPage) getPage(tid, change.rid.getPageId(), LockMode.IX);
+            } catch (TransactionAbortedException e) {
+                throw new IOException("could not undo " + change.rid, e);
+            } catch (DbException e) {
+                throw new IOException("could not undo " + change.rid, e);
+            }
+            synchronized (page) {
+                try {
+                    if (change.deleted != null)
+                        page.insertTuple(change.deleted, change.rid.getTupleNumber());
+                    else
+                        page.deleteTuple(change.rid.getTupleNumber());
+                } catch (DbException e) {
+                    throw new IOException("could not undo " + change.rid, e);
+                }
+                if (log)
+                    logRow(tid, page);
+                else
+                    page.markDirty(true, LOGGED);
+            }
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -235,7 +789,8 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        lockManager.releaseLock(pid,tid);
+        if (lockManager.releaseLock(pid,tid))
+            countPageLock(tid, pid.getTableId(), -1);
     }
 
     /**
@@ -247,9 +802,99 @@ public class BufferPool {
         transactionComplete(tid,true);
     }
 
-    /** Return true if the specified transaction has a lock on the specified page */
+    /** Return the lock manager, e.g. to configure or inspect deadlock detection */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the number of getPage calls served from the cache */
+    public long getNumHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of getPage calls that had to read the page */
+    public long getNumMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of pages evicted to make room for others */
+    public long getNumEvictions() {
+        return evictions.sum();
+    }
+
+    /** @return the number of pages read ahead by the prefetcher */
+    public long getNumPrefetched() {
+        return prefetches.sum();
+    }
+
+    /** @return the number of misses served from the off-heap arena instead of disk */
+    public long getNumOffHeapHits() {
+        return offHeapHits.sum();
+    }
+
+    /** Return the off-heap arena, or null if the pool has none */
+    public PageArena getArena() {
+        return arena;
+    }
+
+    /** Return the prefetcher that reads pages ahead of sequential scans */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /** Return true if the pool runs STEAL/NO FORCE rather than FORCE/NO STEAL */
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
+    /**
+     * Choose between STEAL/NO FORCE and FORCE/NO STEAL. Switch only while
+     * no transaction is running.
+     */
+    public void setStealNoForce(boolean stealNoForce) {
+        this.stealNoForce = stealNoForce;
+    }
+
+    /** Return true if HeapFiles lock tuples rather than whole pages */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
+    /**
+     * Choose between tuple and page locks for HeapFile inserts and deletes.
+     * Switch only while no transaction is running.
+     */
+    public void setRowLocking(boolean rowLocking) {
+        this.rowLocking = rowLocking;
+    }
+
+    /** Return the writer that writes dirty pages back in the background */
+    public PageWriter getPageWriter() {
+        return writer;
+    }
+
+    /** Return true if the specified transaction has a lock on the specified page,
+        or on its table in a mode that covers the page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return lockManager.holdsLock(p,tid);
+        if (lockManager.holdsLock(p,tid))
+            return true;
+        LockMode tableMode = lockManager.getLockMode(LockManager.tableKey(p.getTableId()), tid);
+        return tableMode != null && tableMode.covers(LockMode.S);
+    }
+
+    /** @return the number of page locks above which a transaction's locks in a table are escalated */
+    public int getLockEscalation() {
+        return lockEscalation;
+    }
+
+    /** Set the number of page locks above which a transaction's locks in a table are escalated. */
+    public void setLockEscalation(int lockEscalation) {
+        this.lockEscalation = lockEscalation;
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getNumEscalations() {
+        return escalations.sum();
     }
 
     /**
@@ -261,26 +906,31 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        if(commit) //如果要提交事务
-        	flushPages(tid); //将tid对应的页面刷新到磁盘
-        
-        else{ //如果要终止事务，就要把页面恢复到它的磁盘状态来恢复事务所做的任何更改
-            for (PageId pid : pages.keySet()) {
-                Page page = pages.get(pid);
-                if (page.isDirty() == tid) {
-                	//获取页面的磁盘状态，即修改之前的状态
-                    DbFile file =  Database.getCatalog().getDatabaseFile(pid.getTableId()); 
-                    Page pageFromDisk = file.readPage(pid);
-                    pages.put(pid, pageFromDisk); //把页面的磁盘状态重新put进缓冲池，实现事务回滚
+        if(commit) { //如果要提交事务
+            if (!stealNoForce)
+                flushPages(tid); //将tid对应的页面刷新到磁盘
+            //NO FORCE：页已由Transaction写进日志，留在缓冲池里以后再写回
+        }
+        else{ //如果要终止事务，撤销事务在页面上还没有写进日志的修改
+            for (Frame frame : frames.values()) {
+                Page page = frame.page;
+                if (page != null && page.isDirty() == tid && !(rowLocking && page instanceof HeapPage)) {
+                    //日志里已有的修改由LogFile.rollback撤销，这里回到最后一次记日志时的状态
+                    //行锁模式下堆页的修改都已记日志，并由undoRowChanges撤销
+                    Page logged = page.getBeforeImage();
+                    logged.setLSN(page.getLSN());
+                    if (frame.recLSN >= 0)
+                        logged.markDirty(true, LOGGED); //还有已提交的修改没有写回磁盘，但都已记过日志
+                    frame.setPage(logged);
                 }
             }
         }
         
         //无论提交还是终止，都应该释放BufferPool中保持的关于事务的状态，即锁
-        for(PageId pid:pages.keySet()){
-            if(holdsLock(tid,pid))
-                releasePage(tid,pid);
-        }
+        //已被换出的页上也可能有锁，所以不能只看缓冲池中的页
+        rowChanges.remove(tid);
+        pageLocks.remove(tid);
+        lockManager.releaseAllLocks(tid);
     }
 
     /**
@@ -303,7 +953,7 @@ public class BufferPool {
         ArrayList<Page> page = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for (Page p:page) {
             p.markDirty(true,tid);
-            pages.put(p.getId(),p);
+            installPage(p);
         }
     }
     /**
@@ -324,7 +974,7 @@ public class BufferPool {
         ArrayList<Page> page = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
         for (Page p:page) {
             p.markDirty(true,tid);
-            pages.put(p.getId(),p);
+            installPage(p);
         }
     }
 
@@ -334,8 +984,8 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for(Map.Entry<PageId, Page> entry : pages.entrySet()) 
-            flushPage(entry.getKey());      
+        for (PageId pid : frames.keySet())
+            flushPage(pid);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -346,25 +996,275 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        pages.remove(pid);
+    public void discardPage(PageId pid) {
+        if (frames.remove(pid) != null)
+            policy.pageRemoved(pid);
+        if (arena != null)
+            arena.remove(pid);
+    }
+
+    /**
+     * Return the dirty page table: the pages whose logged updates have not
+     * been written to disk yet, each with the LSN of the first such update.
+     * Frames are read without locking, so the table is fuzzy; a page
+     * written out meanwhile may still be listed.
+     */
+    public Map<PageId,Long> getDirtyPageTable() {
+        HashMap<PageId,Long> dpt = new HashMap<PageId,Long>();
+        for (Frame frame : frames.values()) {
+            long recLSN = frame.recLSN;
+            if (recLSN >= 0)
+                dpt.put(frame.pid, recLSN);
+        }
+        return dpt;
+    }
+
+    /**
+     * Log the updates of all dirty pages of a committing transaction
+     * without writing the pages (NO FORCE). The pages stay dirty, and the
+     * commit record that follows forces the updates to disk with it.
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+        for (Frame frame : frames.values()) {
+            Page page = frame.page;
+            if (page != null && page.isDirty() == tid)
+                logUpdate(frame, page);
+        }
+    }
+
+    /**
+     * @return the image the page had when its last update was logged: the
+     *   before image of the cached page, or the page on disk if it is not
+     *   cached, since pages are logged before they are written out
+     */
+    synchronized Page getLoggedImage(PageId pid) {
+        Frame frame = frames.get(pid);
+        Page page = frame == null ? null : frame.page;
+        if (page != null)
+            return page.getBeforeImage();
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /**
+     * Install a page restored by a rollback. The restore is logged as an
+     * update of the rolled back transaction, from the page's last logged
+     * image, and the page is written out, so that it is on disk whether or
+     * not it was stolen before.
+     */
+    synchronized void restorePage(TransactionId tid, Page restored) throws IOException {
+        PageId pid = restored.getId();
+        LogFile log = Database.getLogFile();
+        long lsn = log.logWrite(tid, getLoggedImage(pid), restored);
+        log.forceTo(lsn);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(restored);
+        restored.setLSN(lsn);
+        restored.setBeforeImage();
+        restored.markDirty(false, null);
+        Frame frame = frames.get(pid);
+        if (frame != null && frame.page != null) {
+            frame.setPage(restored);
+            frame.recLSN = -1;
+        }
+        if (arena != null)
+            arena.remove(pid);
+    }
+
+    /**
+     * Install a page restored by the rollback of a transaction whose commit
+     * failed after the log stopped. The page is neither logged nor written:
+     * it stays dirty in the pool, where readers find it instead of the copy
+     * on disk.
+     *
+     * @see LogFile#rollbackFailed
+     */
+    synchronized void installRolledBack(Page restored) {
+        PageId pid = restored.getId();
+        Frame frame = frames.get(pid);
+        if (frame != null && frame.page != null)
+            restored.setLSN(frame.page.getLSN());
+        restored.setBeforeImage();
+        restored.markDirty(true, LOGGED);
+        installPage(restored);
+        if (arena != null)
+            arena.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Write a dirty page back on behalf of the {@link PageWriter}. The
+     * writer takes a shared lock on the page for the time of the write, so
+     * pages still locked exclusively by a running transaction are skipped
+     * (NO STEAL), and no transaction modifies the page while it is written.
+     *
+     * @param writerTid the id the writer locks the page with; a single
+     *   thread at a time may use it
+     * @return true if the page was written
+     */
+    boolean writeBackPage(PageId pid, TransactionId writerTid) throws IOException {
+        if (Database.getBufferPool() != this)
+            return false; //缓冲池已被替换，日志和目录都不再属于它
+        Frame frame = frames.get(pid);
+        if (frame == null)
+            return false;
+        Page page = frame.page;
+        if (page == null || (page.isDirty() == null && frame.recLSN < 0))
+            return false;
+        Object table = LockManager.tableKey(pid.getTableId());
+        boolean tableLocked = false;
+        try {
+            //表上的X锁表示有事务在改这个表的页，页上不一定有锁
+            if (!lockManager.acquireLock(table, writerTid, LockMode.IS, WRITER_LOCK_TIMEOUT))
+                return false;
+            tableLocked = true;
+            if (!lockManager.acquireLock(pid, writerTid, LockMode.S, WRITER_LOCK_TIMEOUT)) {
+                lockManager.releaseLock(table, writerTid);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (tableLocked)
+                lockManager.releaseLock(table, writerTid);
+            return false;
+        }
+        try {
+            synchronized (this) {
+                page = frame.page;
+                if (frames.get(pid) != frame || page == null || page.isDirty() == null)
+                    return false;
+                flushPage(pid);
+                return true;
+            }
+        } finally {
+            lockManager.releaseLock(pid, writerTid);
+            lockManager.releaseLock(table, writerTid);
+        }
+    }
+
+    /** @return true if fewer pages than CLEAN_FRACTION of the pool are free of dirty data */
+    boolean needsCleaning() {
+        return countDirty() > (int) (numPages * (1 - CLEAN_FRACTION));
+    }
+
+    private int countDirty() {
+        int dirty = 0;
+        for (Frame frame : frames.values()) {
+            Page page = frame.page;
+            if (page != null && page.isDirty() != null)
+                dirty++;
+        }
+        return dirty;
+    }
+
+    /**
+     * @return the dirty pages the page writer could write back to keep the
+     *   pool clean, in page-number order so that the writes are sequential
+     *   within each file; empty if the pool is clean enough
+     */
+    List<PageId> pagesToClean() {
+        if (!needsCleaning())
+            return Collections.emptyList();
+        ArrayList<PageId> dirty = new ArrayList<PageId>();
+        for (Frame frame : frames.values()) {
+            Page page = frame.page;
+            if (page != null && page.isDirty() != null)
+                dirty.add(frame.pid);
+        }
+        Collections.sort(dirty, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId())
+                    return Integer.compare(a.getTableId(), b.getTableId());
+                return Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+        return dirty;
+    }
+
+    /**
+     * Flushes a certain page to disk. An update record with the page's
+     * before and after images is logged first, and the log is forced up to
+     * it before the page is written (write-ahead logging).
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        if(pages.get(pid).isDirty() != null)
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+    private void flushPage(PageId pid) throws IOException {
+        Frame frame = frames.get(pid);
+        if (frame == null)
+            return;
+        frame.pin(); //写出期间不能被换出
+        try {
+            Page page = frame.page;
+            if (page != null && page.isDirty() != null) {
+                logUpdate(frame, page);
+                Database.getLogFile().forceTo(page.getLSN());
+                writeOut(frame, page);
+            }
+        } finally {
+            frame.unpin();
+        }
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Log an update record for a dirty page and remember its LSN on the page,
+     * and as the frame's recLSN if it is the first since the page was written.
+     * The logged image becomes the page's before image, so the next record
+     * of the page starts where this one ends.
+     */
+    private void logUpdate(Frame frame, Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (LOGGED.equals(dirtier))
+            return; //内容与最后一条日志记录相同，它的LSN也已在页上
+        LogFile log = Database.getLogFile();
+        synchronized (page) { //行锁模式下其他事务可能正在改这一页
+            synchronized (log) { //检查点不能看到已记录但还没有recLSN的页
+                page.setLSN(log.logWrite(dirtier, page.getBeforeImage(), page));
+                page.setBeforeImage();
+                if (frame.recLSN < 0)
+                    frame.recLSN = page.getLSN();
+            }
+        }
+    }
+
+    /** Write a dirty page whose update record is already on disk. */
+    private void writeOut(Frame frame, Page page) throws IOException {
+        PageId pid = page.getId();
+        synchronized (page) {
+            if (rowLocking) //记日志之后可能又有元组修改，日志要先于页落盘
+                Database.getLogFile().forceTo(page.getLSN());
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            page.markDirty(false, null);
+            frame.recLSN = -1;
+        }
+        if (arena != null)
+            arena.remove(pid); //堆外若还有旧版本，已经过时了
+    }
+
+    /** Write all pages of the specified transaction to disk. The update
+     * records of all the pages are logged first and forced together, then
+     * the pages are written, and their current contents become their before
+     * images since the transaction is committing.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        for(Map.Entry<PageId, Page> entry : pages.entrySet()) {
-            if(entry.getValue().isDirty() == tid)
-            	flushPage(entry.getKey());
+        ArrayList<Frame> pinned = new ArrayList<Frame>();
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        try {
+            long lsn = -1;
+            for (Frame frame : frames.values()) {
+                Page page = frame.page;
+                if (page != null && page.isDirty() == tid) {
+                    frame.pin(); //写出期间不能被换出
+                    pinned.add(frame);
+                    dirty.add(page);
+                    logUpdate(frame, page);
+                    lsn = Math.max(lsn, page.getLSN());
+                }
+            }
+            if (lsn >= 0)
+                Database.getLogFile().forceTo(lsn); //一次刷盘覆盖所有页的日志
+            for (int i = 0; i < dirty.size(); i++) {
+                Page page = dirty.get(i);
+                writeOut(pinned.get(i), page);
+            }
+        } finally {
+            for (Frame frame : pinned)
+                frame.unpin();
         }
     }
 
@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * BufferRing is a small private set of BufferPool frames that a large
+ * sequential scan reads through, so that the scan does not push the rest of
+ * the working set out of the pool.
+ * <p>
+ * Every page the scan has to read from disk is remembered in the next slot
+ * of the ring. Once the ring has wrapped around, the page that occupied the
+ * slot before is evicted to make room, instead of asking the pool's
+ * EvictionPolicy for a victim. A page the scan finds already cached is used
+ * as is and not taken into the ring, and a ring page that is requested by
+ * anyone else than the scan, or that got dirty, is left to the pool.
+ * <p>
+ * Rings are obtained from {@link BufferPool#newScanRing(int)}, which only
+ * hands one out when the file does not fit in the pool. The default
+ * ring size is 16 pages and can be changed with the system property
+ * simpledb.scanRingPages.
+ *
+ * @Threadsafe
+ */
+public class BufferRing {
+
+    /** Number of frames in a ring, unless the pool is too small for it. */
+    public static final int DEFAULT_SIZE = Math.max(2, Integer.getInteger("simpledb.scanRingPages", 16));
+
+    private final PageId[] slots;
+    private int next = 0; // protected by this
+
+    /**
+     * @param size the number of frames in the ring, at least 2 so that the
+     *   page a scan is working on is never the one being recycled
+     */
+    public BufferRing(int size) {
+        if (size < 2)
+            throw new IllegalArgumentException("a buffer ring needs at least 2 frames");
+        slots = new PageId[size];
+    }
+
+    /** @return the number of frames in the ring */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Remember pid in the next slot.
+     *
+     * @return the page previously in that slot, which should be evicted to
+     *   make room for pid, or null if the slot was empty
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+
+    /** Forget all pages of the ring and return them. */
+    synchronized PageId[] clear() {
+        PageId[] pages = slots.clone();
+        Arrays.fill(slots, null);
+        next = 0;
+        return pages;
+    }
+}
@@ -14,6 +14,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
  * 目前，这是一个存根目录，在使用之前必须由用户程序填充表,最终，它应该转换为从磁盘读取目录表的目录。
+ * <p>
+ * Tables are indexed by id and by name in an immutable snapshot. Lookups,
+ * which sit on the buffer pool's hot path, read the current snapshot without
+ * taking any lock and take constant time; adding or removing tables copies
+ * the snapshot and publishes the new one.
  * 
  * @Threadsafe
  */
@@ -24,20 +29,93 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
      * Creates a new, empty catalog.
      */
 	
-	ArrayList<Table> tables=new ArrayList<Table>();
+	// 当前的目录快照，DDL时整体替换，读者不加锁
+	private volatile Snapshot snapshot = new Snapshot();
 	
     public Catalog() {} //创建一个新的，空的目录
 
     public class Table{ //自己添加的辅助类，简化下面有关表功能实现的代码
-    	private DbFile file; //DbFile是一个数据库文件的接口,HeapFile实现了这个接口
+    	private final int id;
+    	private volatile DbFile file; //DbFile是一个数据库文件的接口,HeapFile实现了这个接口
+    	private final CatalogFile.Entry entry; //从二进制目录加载的表，第一次用到时才打开file
     	private String name;
     	private String pkeyField;
+    	private volatile long numTuples = -1;
     	public Table(DbFile file,String name,String key) {
+    		this.id=file.getId();
     		this.file=file;
+    		this.entry=null;
     		this.name=name;
     		this.pkeyField=key;
     	}
+
+    	Table(CatalogFile.Entry entry) {
+    		this.id=entry.id;
+    		this.entry=entry;
+    		this.name=entry.name;
+    		this.pkeyField=entry.primaryKey;
+    	}
+
+    	DbFile file() {
+    		DbFile f = file;
+    		if (f != null)
+    			return f;
+    		synchronized (this) {
+    			if (file == null) {
+    				try {
+    					file = entry.open();
+    					numTuples = entry.getNumTuples();
+    				} catch (IOException e) {
+    					throw new RuntimeException("cannot open table " + name, e);
+    				}
+    				Debug.log(1, "Opened table %s with schema %s", name, file.getTupleDesc());
+    			}
+    			return file;
+    		}
+    	}
+    }
+
+    /** An immutable view of the tables, indexed by id and by name. */
+    private static class Snapshot {
+    	final HashMap<Integer, Table> byId;
+    	final HashMap<String, Table> byName;
+    	final ArrayList<Integer> ids; //按添加顺序
+
+    	Snapshot() {
+    		byId = new HashMap<Integer, Table>();
+    		byName = new HashMap<String, Table>();
+    		ids = new ArrayList<Integer>();
+    	}
+
+    	Snapshot(Snapshot other) {
+    		byId = new HashMap<Integer, Table>(other.byId);
+    		byName = new HashMap<String, Table>(other.byName);
+    		ids = new ArrayList<Integer>(other.ids);
+    	}
+
+    	void remove(Table t) {
+    		if (t == null)
+    			return;
+    		int id = t.id;
+    		byId.remove(id);
+    		byName.remove(t.name);
+    		ids.remove(Integer.valueOf(id));
+    	}
+
+    	void add(Table t) {
+    		//名字可能为空，这时候就要比file的ID
+    		remove(byId.get(t.id));
+    		remove(byName.get(t.name));
+    		byId.put(t.id, t);
+    		byName.put(t.name, t);
+    		ids.add(t.id);
+    	}
     }
+
+    private Table lookup(int tableid) {
+    	return snapshot.byId.get(tableid);
+    }
+
     //这一段是描述Table中的三个属性
     /**
      * Add a new table to the catalog. 添加新的表到目录中
@@ -51,12 +129,16 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
      * @param pkeyField the name of the primary key field
      * 主键的名字
      */
-    public void addTable(DbFile file, String name, String pkeyField) {
-        for(int i=0;i<tables.size();i++) {
-        	if(file.getId()==tables.get(i).file.getId()||name.equals(tables.get(i).name)) 
-        		tables.remove(i); //名字可能为空，这时候就要比file的ID
-        }
-        tables.add(new Table(file,name,pkeyField));
+    public synchronized void addTable(DbFile file, String name, String pkeyField) {
+        addTables(Collections.singletonList(new Table(file,name,pkeyField)));
+    }
+
+    /** Add several tables at once, publishing a single new snapshot. */
+    private synchronized void addTables(List<Table> tables) {
+        Snapshot next = new Snapshot(snapshot);
+        for (Table t : tables)
+            next.add(t);
+        snapshot = next;
     }
 
     public void addTable(DbFile file, String name) {
@@ -82,10 +164,10 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
     public int getTableId(String name) throws NoSuchElementException {
         if(name==null)
         	throw new NoSuchElementException();
-        for(int i=0;i<tables.size();i++) 
-        	if(name.equals(tables.get(i).name))
-        		return tables.get(i).file.getId();
-        throw new NoSuchElementException();
+        Table t = snapshot.byName.get(name);
+        if (t == null)
+        	throw new NoSuchElementException();
+        return t.id;
     }
 
     /**
@@ -95,10 +177,7 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-    	for(int i=0;i<tables.size();i++)
-    		if(tableid==tables.get(i).file.getId())
-    			return tables.get(i).file.getTupleDesc();
-    	throw new NoSuchElementException();
+    	return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -110,52 +189,111 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
      */
     
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-    	for(int i=0;i<tables.size();i++)
-    		if(tableid==tables.get(i).file.getId())
-    			return tables.get(i).file;
-    	throw new NoSuchElementException();
+    	Table t = lookup(tableid);
+    	if (t == null)
+    		throw new NoSuchElementException();
+    	return t.file();
     }
 
     public String getPrimaryKey(int tableid) {
-    	for(int i=0;i<tables.size();i++)
-    		if(tableid==tables.get(i).file.getId())
-    			return tables.get(i).pkeyField;
-        return null;
+    	Table t = lookup(tableid);
+        return t == null ? null : t.pkeyField;
     }
 
     public String getTableName(int id) {
-        for(int i=0;i<tables.size();i++)
-        	if(id==tables.get(i).file.getId())
-        		return tables.get(i).name;
-        return null;
+    	Table t = lookup(id);
+        return t == null ? null : t.name;
+    }
+
+    /**
+     * Returns the names of the indexed fields of the specified table: the
+     * key of a B+ tree, or the indexes recorded in a binary catalog.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public List<String> getIndexedFields(int tableid) throws NoSuchElementException {
+    	Table t = lookup(tableid);
+    	if (t == null)
+    		throw new NoSuchElementException();
+    	if (t.entry != null) {
+    		try {
+    			return Collections.unmodifiableList(t.entry.getIndexes());
+    		} catch (IOException e) {
+    			throw new RuntimeException("cannot read indexes of table " + t.name, e);
+    		}
+    	}
+    	DbFile f = t.file();
+    	if (f instanceof BTreeFile)
+    		return Collections.singletonList(f.getTupleDesc().getFieldName(((BTreeFile) f).keyField()));
+    	return Collections.emptyList();
+    }
+
+    /**
+     * Returns the number of tuples of the specified table as last recorded
+     * in the catalog, or -1 if it is not known.
+     */
+    public long getNumTuples(int tableid) {
+    	Table t = lookup(tableid);
+    	if (t == null)
+    		return -1;
+    	if (t.file == null && t.entry != null) {
+    		try {
+    			return t.entry.getNumTuples();
+    		} catch (IOException e) {
+    			return -1;
+    		}
+    	}
+    	return t.numTuples;
+    }
+
+    /** Record the number of tuples of the specified table, saved with the catalog. */
+    public void setNumTuples(int tableid, long numTuples) {
+    	Table t = lookup(tableid);
+    	if (t == null)
+    		throw new NoSuchElementException();
+    	t.file(); //先打开，免得之后被目录里记录的值覆盖
+    	t.numTuples = numTuples;
     }
     
     /** Delete all tables from the catalog */
-    public void clear() {
-       int n=tables.size();
-       for(int i=0;i<n;i++)  //注意不能直接用size，否则每次i+1且size-1，相当于2步进
-    	   tables.remove(i);
+    public synchronized void clear() {
+       snapshot = new Snapshot();
     }
     
+    /** @return the ids of the tables, in the order they were added */
     public Iterator<Integer> tableIdIterator() { 
-        return null;
+        return Collections.unmodifiableList(snapshot.ids).iterator();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * The file is either a binary catalog written by {@link #saveSchema}, whose
+     * tables are only opened when they are first used, or a text file with one
+     * table per line, of the form <tt>name (field type [pk], field type, ...)</tt>.
      * @param catalogFile
+     * @throws IOException if the file cannot be read or is not a valid catalog
      */
     //从文件中读取schema并在数据库中创建适当的table
-    public void loadSchema(String catalogFile) {
+    public void loadSchema(String catalogFile) throws IOException {
+        File f = new File(catalogFile);
+        ArrayList<Table> tables = new ArrayList<Table>();
+        if (CatalogFile.isBinary(f)) {
+            for (CatalogFile.Entry e : CatalogFile.read(f))
+                tables.add(new Table(e));
+            Debug.log(1, "Loaded %d tables from %s", tables.size(), catalogFile);
+        } else {
+            readTextSchema(f, tables);
+        }
+        addTables(tables);
+    }
+
+    private void readTextSchema(File catalogFile, List<Table> tables) throws IOException {
         String line = "";
-        String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
+        String baseFolder=catalogFile.getAbsoluteFile().getParent();
+        BufferedReader br = new BufferedReader(new FileReader(catalogFile));
         try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
-            
             while ((line = br.readLine()) != null) {
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
-                //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
@@ -168,33 +306,48 @@ public class Catalog { //Catalog跟踪数据库中的所有可用表及其关联
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
-                    else {
-                        System.out.println("Unknown type " + els2[1]);
-                        System.exit(0);
-                    }
+                    else
+                        throw new IOException("Unknown type " + els2[1] + " in catalog entry : " + line);
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
-                        else {
-                            System.out.println("Unknown annotation " + els2[2]);
-                            System.exit(0);
-                        }
+                        else
+                            throw new IOException("Unknown annotation " + els2[2] + " in catalog entry : " + line);
                     }
                 }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
-                System.out.println("Added table : " + name + " with schema " + t);
+                tables.add(new Table(tabHf,name,primaryKey));
+                Debug.log(1, "Added table : %s with schema %s", name, t);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
-            System.out.println ("Invalid catalog entry : " + line);
-            System.exit(0);
+            throw new IOException("Invalid catalog entry : " + line, e);
+        } finally {
+            br.close();
         }
     }
-}
 
+    /**
+     * Writes the tables of the catalog to a binary catalog file, which
+     * {@link #loadSchema} reads back. Only tables stored in heap files and
+     * B+ tree files can be saved.
+     * @throws IOException if the file cannot be written or a table cannot be saved
+     */
+    public void saveSchema(String catalogFile) throws IOException {
+        Snapshot s = snapshot;
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<DbFile> files = new ArrayList<DbFile>();
+        ArrayList<Long> numTuples = new ArrayList<Long>();
+        for (Integer id : s.ids) {
+            Table t = s.byId.get(id);
+            names.add(t.name);
+            keys.add(t.pkeyField);
+            files.add(t.file());
+            numTuples.add(t.numTuples);
+        }
+        CatalogFile.write(new File(catalogFile), names, keys, files, numTuples);
+    }
+}
@@ -0,0 +1,237 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * CatalogFile reads and writes the binary catalog format. Loading a binary
+ * catalog maps the file and only decodes the id, name and primary key of
+ * each table; the rest of an entry is decoded, and its DbFile opened, the
+ * first time the table is used.
+ * <p>
+ * The format is big-endian, with strings as written by
+ * {@link DataOutput#writeUTF}:
+ * <pre>
+ *   int magic ("SDBC"), int version, int number of tables, then per table:
+ *     int length of the rest of the entry
+ *     int table id, UTF name, UTF primary key
+ *     byte kind (0 heap file, 1 B+ tree), UTF absolute path,
+ *     int key field (B+ trees; -1 for heap files)
+ *     short number of fields, then per field: byte type, UTF name
+ *     short number of indexes, then per index: UTF indexed field name
+ *     long number of tuples (-1 if unknown)
+ * </pre>
+ */
+public class CatalogFile {
+
+    static final int MAGIC = 0x53444243;
+    static final int VERSION = 1;
+
+    static final byte HEAP = 0;
+    static final byte BTREE = 1;
+
+    private CatalogFile() {}
+
+    /**
+     * A table of a binary catalog. Everything after the primary key is
+     * decoded on first use.
+     */
+    static class Entry {
+        final int id;
+        final String name;
+        final String primaryKey;
+        private final ByteBuffer rest; // 映射区里本条目尚未解码的部分
+
+        // 以下字段在decode()之后有效，由this保护
+        private boolean decoded = false;
+        private byte kind;
+        private String path;
+        private int keyField;
+        private TupleDesc td;
+        private List<String> indexes;
+        private long numTuples;
+
+        Entry(int id, String name, String primaryKey, ByteBuffer rest) {
+            this.id = id;
+            this.name = name;
+            this.primaryKey = primaryKey;
+            this.rest = rest;
+        }
+
+        private synchronized void decode() throws IOException {
+            if (decoded)
+                return;
+            DataInputStream in = new DataInputStream(PageIO.inputStream(rest.duplicate()));
+            kind = in.readByte();
+            path = in.readUTF();
+            keyField = in.readInt();
+            int numFields = in.readShort();
+            Type[] types = new Type[numFields];
+            String[] names = new String[numFields];
+            Type[] all = Type.values();
+            for (int i = 0; i < numFields; i++) {
+                int type = in.readByte();
+                if (type < 0 || type >= all.length)
+                    throw new IOException("unknown type " + type + " in table " + name);
+                types[i] = all[type];
+                String fieldName = in.readUTF();
+                names[i] = fieldName.isEmpty() ? null : fieldName; //匿名字段存为空串
+            }
+            td = new TupleDesc(types, names);
+            int numIndexes = in.readShort();
+            indexes = new ArrayList<String>(numIndexes);
+            for (int i = 0; i < numIndexes; i++)
+                indexes.add(in.readUTF());
+            numTuples = in.readLong();
+            decoded = true;
+        }
+
+        /** Open the DbFile of this table. */
+        synchronized DbFile open() throws IOException {
+            decode();
+            return openFile(kind, new File(path), keyField, td);
+        }
+
+        synchronized List<String> getIndexes() throws IOException {
+            decode();
+            return indexes;
+        }
+
+        synchronized long getNumTuples() throws IOException {
+            decode();
+            return numTuples;
+        }
+    }
+
+    private static DbFile openFile(byte kind, File f, int keyField, TupleDesc td) throws IOException {
+        if (kind == HEAP)
+            return new HeapFile(f, td);
+        if (kind == BTREE)
+            return new BTreeFile(f, keyField, td);
+        throw new IOException("unknown table kind " + kind);
+    }
+
+    /** @return true if the given file starts like a binary catalog */
+    static boolean isBinary(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Map a binary catalog and read the header of each entry.
+     *
+     * @throws IOException if the file is not a binary catalog of a supported
+     *   version, or is truncated
+     */
+    static List<Entry> read(File f) throws IOException {
+        MappedByteBuffer buf;
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            ch.close(); //关闭通道后映射依然有效
+        }
+        try {
+            if (buf.getInt() != MAGIC)
+                throw new IOException(f + " is not a binary catalog");
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException(f + " has unsupported catalog version " + version);
+            int count = buf.getInt();
+            ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                int length = buf.getInt();
+                ByteBuffer entry = buf.slice();
+                entry.limit(length);
+                buf.position(buf.position() + length);
+
+                DataInputStream in = new DataInputStream(PageIO.inputStream(entry));
+                int id = in.readInt();
+                String name = in.readUTF();
+                String primaryKey = in.readUTF();
+                entries.add(new Entry(id, name, primaryKey, entry.slice()));
+            }
+            return entries;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(f + " is truncated", e);
+        }
+    }
+
+    /**
+     * Write a binary catalog of the given tables. Only heap files and B+
+     * trees can be saved.
+     *
+     * @param numTuples the number of tuples of each table, -1 if unknown
+     */
+    static void write(File f, List<String> names, List<String> primaryKeys,
+            List<DbFile> files, List<Long> numTuples) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                byte[] entry = encode(names.get(i), primaryKeys.get(i), files.get(i), numTuples.get(i));
+                out.writeInt(entry.length);
+                out.write(entry);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] encode(String name, String primaryKey, DbFile file, long numTuples) throws IOException {
+        byte kind;
+        File path;
+        int keyField = -1;
+        if (file instanceof HeapFile) {
+            kind = HEAP;
+            path = ((HeapFile) file).getFile().getAbsoluteFile();
+        } else if (file instanceof BTreeFile) {
+            kind = BTREE;
+            path = ((BTreeFile) file).getFile().getAbsoluteFile();
+            keyField = ((BTreeFile) file).keyField();
+        } else {
+            throw new IOException("cannot save table " + name + " of type " + file.getClass().getName());
+        }
+        TupleDesc td = file.getTupleDesc();
+        //表号按重新打开后的文件计算，和加载时懒打开得到的一致
+        int id = openFile(kind, path, keyField, td).getId();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(id);
+        out.writeUTF(name);
+        out.writeUTF(primaryKey == null ? "" : primaryKey);
+        out.writeByte(kind);
+        out.writeUTF(path.getPath());
+        out.writeInt(keyField);
+        out.writeShort(td.numFields());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeByte(td.getFieldType(i).ordinal());
+            String fieldName = td.getFieldName(i);
+            out.writeUTF(fieldName == null ? "" : fieldName);
+        }
+        if (kind == BTREE) {
+            out.writeShort(1);
+            String keyName = td.getFieldName(keyField);
+            out.writeUTF(keyName == null ? "" : keyName);
+        } else {
+            out.writeShort(0);
+        }
+        out.writeLong(numTuples);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) approximation of LRU.
+ * <p>
+ * Pages sit in the slots of a circular array. A hit only sets the page's
+ * reference bit, without taking any lock, so it does not slow down the
+ * lock-free hit path of the BufferPool. To find a victim the clock hand
+ * sweeps the slots, clearing reference bits as it goes, and stops at the
+ * first evictable page whose bit is already clear.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static class Entry {
+        final PageId pid;
+        volatile boolean referenced = true;
+        int slot;
+
+        Entry(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Entry> index = new ConcurrentHashMap<PageId, Entry>();
+    // 以下字段由this保护：环形的槽数组、空闲槽和时钟指针
+    private final ArrayList<Entry> slots = new ArrayList<Entry>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageLoaded(PageId pid) {
+        Entry e = index.get(pid);
+        if (e != null) {
+            e.referenced = true;
+            return;
+        }
+        e = new Entry(pid);
+        if (freeSlots.isEmpty()) {
+            e.slot = slots.size();
+            slots.add(e);
+        } else {
+            e.slot = freeSlots.poll();
+            slots.set(e.slot, e);
+        }
+        index.put(pid, e);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Entry e = index.get(pid);
+        if (e != null)
+            e.referenced = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Entry e = index.remove(pid);
+        if (e != null) {
+            slots.set(e.slot, null);
+            freeSlots.add(e.slot);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        int n = slots.size();
+        //转两圈：第一圈清掉引用位，第二圈一定能找到可换出的页（如果有的话）
+        for (int i = 0; i < 2 * n; i++) {
+            Entry e = slots.get(hand);
+            hand = (hand + 1) % n;
+            if (e == null || !candidates.isEvictable(e.pid))
+                continue;
+            if (e.referenced) {
+                e.referenced = false;
+                continue;
+            }
+            return e.pid;
+        }
+        return null;
+    }
+}
@@ -81,6 +81,22 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Method used for testing -- replace the log file of the static Database
+     * instance with the given one
+     */
+    static void resetLogFile(LogFile log) {
+        try {
+            java.lang.reflect.Field logFileF = Database.class.getDeclaredField("_logfile");
+            logFileF.setAccessible(true);
+            logFileF.set(_instance.get(), log);
+        } catch (NoSuchFieldException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
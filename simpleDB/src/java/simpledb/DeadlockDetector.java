@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * DeadlockDetector maintains the waits-for graph of the LockManager and
+ * looks for a cycle every time a lock request blocks.
+ * <p>
+ * An edge T1 -> T2 means that T1 is parked behind a lock T2 holds or has
+ * requested earlier. A transaction has at most one outstanding request, so
+ * its out-edges are replaced as a whole whenever the queue it waits on
+ * changes. Because every cycle is closed by some request blocking, checking
+ * only from the newly blocked transaction finds every deadlock.
+ * <p>
+ * When a cycle is found, one transaction on it is chosen as the victim
+ * according to the configured {@link VictimPolicy}; its pending request
+ * fails and BufferPool aborts it with a TransactionAbortedException.
+ * The victim policy can be chosen at startup with the system property
+ * simpledb.deadlockVictim (youngest, fewestLocks or leastLog).
+ *
+ * @Threadsafe
+ */
+public class DeadlockDetector {
+
+    /** How to pick the transaction to abort on a waits-for cycle. */
+    public enum VictimPolicy {
+        /** The transaction that started last. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks. */
+        FEWEST_LOCKS,
+        /** The transaction that has written the least log. */
+        LEAST_LOG
+    }
+
+    private final LockManager lockManager;
+    private volatile VictimPolicy policy;
+
+    // 等待图：waiter -> 它所等待的事务，由this保护
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+    // waiter当前阻塞所在的监视器，唤醒牺牲者时使用
+    private final HashMap<TransactionId, Object> waitingOn = new HashMap<TransactionId, Object>();
+    private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+
+    private long deadlocks = 0;
+    private long detections = 0;
+    private long totalDetectionNanos = 0;
+    private long maxDetectionNanos = 0;
+
+    public DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+        this.policy = policyFromProperty(System.getProperty("simpledb.deadlockVictim"));
+    }
+
+    private static VictimPolicy policyFromProperty(String value) {
+        if (value == null || value.length() == 0 || value.equalsIgnoreCase("youngest"))
+            return VictimPolicy.YOUNGEST;
+        if (value.equalsIgnoreCase("fewestLocks"))
+            return VictimPolicy.FEWEST_LOCKS;
+        if (value.equalsIgnoreCase("leastLog"))
+            return VictimPolicy.LEAST_LOG;
+        throw new IllegalArgumentException("unknown deadlock victim policy " + value);
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return policy;
+    }
+
+    public void setVictimPolicy(VictimPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Record that tid is blocked on monitor behind the given transactions,
+     * and check whether this closes a cycle.
+     *
+     * @return the victim chosen to break the deadlock, or null if there is none
+     */
+    public synchronized TransactionId addWaiter(TransactionId tid, Object monitor, Set<TransactionId> blockers) {
+        waitsFor.put(tid, blockers);
+        waitingOn.put(tid, monitor);
+
+        long start = System.nanoTime();
+        List<TransactionId> cycle = findCycle(tid);
+        long elapsed = System.nanoTime() - start;
+        detections++;
+        totalDetectionNanos += elapsed;
+        maxDetectionNanos = Math.max(maxDetectionNanos, elapsed);
+
+        if (cycle == null)
+            return null;
+        deadlocks++;
+        TransactionId victim = chooseVictim(cycle);
+        Debug.log(1, "DeadlockDetector: cycle %s, aborting %d", cycle, victim.getId());
+        victims.add(victim);
+        return victim;
+    }
+
+    /** Replace the set of transactions tid is waiting for. */
+    public synchronized void updateWaiter(TransactionId tid, Set<TransactionId> blockers) {
+        if (waitsFor.containsKey(tid))
+            waitsFor.put(tid, blockers);
+    }
+
+    /** Forget tid's outstanding request, whether it was granted or given up. */
+    public synchronized void removeWaiter(TransactionId tid) {
+        waitsFor.remove(tid);
+        waitingOn.remove(tid);
+        victims.remove(tid);
+    }
+
+    /** Return true if tid has been chosen to break a deadlock. */
+    public synchronized boolean isVictim(TransactionId tid) {
+        return victims.contains(tid);
+    }
+
+    /** Wake the victim up so it notices it has to give up its request. */
+    public void wake(TransactionId victim) {
+        Object monitor;
+        synchronized (this) {
+            monitor = waitingOn.get(victim);
+        }
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Depth-first search of the waits-for graph for a path from start back
+     * to itself. Transactions already chosen as victims are skipped, so that
+     * a cycle that does not go through one of them gets a victim of its own.
+     *
+     * @return the transactions on the cycle, or null if there is no cycle
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        HashMap<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+        Deque<TransactionId> stack = new ArrayDeque<TransactionId>();
+        stack.push(start);
+        parent.put(start, null);
+        while (!stack.isEmpty()) {
+            TransactionId cur = stack.pop();
+            Set<TransactionId> next = waitsFor.get(cur);
+            if (next == null)
+                continue;
+            for (TransactionId t : next) {
+                if (t.equals(start)) {
+                    LinkedList<TransactionId> cycle = new LinkedList<TransactionId>();
+                    for (TransactionId p = cur; p != null; p = parent.get(p))
+                        cycle.addFirst(p);
+                    return cycle;
+                }
+                //已选中的牺牲者马上就会放弃等待，经过它的环不必再打破
+                if (!parent.containsKey(t) && !victims.contains(t)) {
+                    parent.put(t, cur);
+                    stack.push(t);
+                }
+            }
+        }
+        return null;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long victimCost = 0;
+        for (TransactionId t : cycle) {
+            long cost;
+            switch (policy) {
+            case FEWEST_LOCKS:
+                cost = lockManager.getNumLocksHeld(t);
+                break;
+            case LEAST_LOG:
+                cost = Database.getLogFile().getLogBytesWritten(t);
+                break;
+            default:
+                cost = 0;
+            }
+            //代价相同时选择最年轻的事务
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /** @return the number of deadlocks detected so far */
+    public synchronized long getNumDeadlocks() {
+        return deadlocks;
+    }
+
+    /** @return the number of cycle checks run so far */
+    public synchronized long getNumDetections() {
+        return detections;
+    }
+
+    /** @return the average time spent in a cycle check, in nanoseconds */
+    public synchronized long getAvgDetectionNanos() {
+        return detections == 0 ? 0 : totalDetectionNanos / detections;
+    }
+
+    /** @return the longest time spent in a single cycle check, in nanoseconds */
+    public synchronized long getMaxDetectionNanos() {
+        return maxDetectionNanos;
+    }
+}
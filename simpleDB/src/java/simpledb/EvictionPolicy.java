@@ -0,0 +1,65 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which cached page the BufferPool throws out when it
+ * needs room for a new one.
+ * <p>
+ * The BufferPool reports every page that enters or leaves the page table and
+ * every cache hit; the policy keeps whatever history it needs and, on
+ * request, names a victim among the pages the BufferPool is allowed to evict
+ * (pages that are pinned or dirty are not). The notifications may arrive
+ * from many threads at once, and may be slightly out of step with the page
+ * table, so implementations must ignore pages they do not know about.
+ * <p>
+ * The policy used by the BufferPool is chosen at startup with the system
+ * property simpledb.evictionPolicy (clock, lru-k or 2q), see
+ * {@link #forName(String, int)}.
+ *
+ * @Threadsafe
+ */
+public interface EvictionPolicy {
+
+    /** Tells the policy which of its pages may be evicted right now. */
+    public interface Candidates {
+        /**
+         * @return true if the page may be evicted; pages that are no longer
+         *   in the page table count as evictable, so that stale entries get
+         *   chosen and dropped
+         */
+        boolean isEvictable(PageId pid);
+    }
+
+    /** Called when a page is read into (or installed in) the page table. */
+    void pageLoaded(PageId pid);
+
+    /** Called on every cache hit. This is on the hot path and should be cheap. */
+    void pageAccessed(PageId pid);
+
+    /** Called when a page leaves the page table, evicted or discarded. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict. The victim stays known to the policy until
+     * {@link #pageRemoved(PageId)} is called for it.
+     *
+     * @param candidates tells which pages may be evicted
+     * @return the victim, or null if none of the pages may be evicted
+     */
+    PageId chooseVictim(Candidates candidates);
+
+    /**
+     * Create the policy with the given name for a pool of numPages pages.
+     *
+     * @param name clock, lru-k or 2q; null or empty selects clock
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static EvictionPolicy forName(String name, int numPages) {
+        if (name == null || name.length() == 0 || name.equalsIgnoreCase("clock"))
+            return new ClockEvictionPolicy();
+        if (name.equalsIgnoreCase("lru-k") || name.equalsIgnoreCase("lruk"))
+            return new LRUKEvictionPolicy(LRUKEvictionPolicy.DEFAULT_K);
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQueueEvictionPolicy(numPages);
+        throw new IllegalArgumentException("unknown eviction policy " + name);
+    }
+}
@@ -36,6 +36,9 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
     	super.open();
+    	//子节点是顺序扫描时把谓词下推下去，被拒绝的元组不用解码；这里仍然会再判断一次
+    	if (child instanceof SeqScan)
+    		((SeqScan) child).pushPredicate(pred);
         child.open();
     }
 
@@ -1,11 +1,9 @@
 package simpledb;
 
-import jdk.nashorn.internal.runtime.arrays.ArrayLikeIterator;
-
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-
-import static jdk.nashorn.internal.ir.debug.ObjectSizeCalculator.getObjectSize;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -17,9 +15,18 @@ import static jdk.nashorn.internal.ir.debug.ObjectSizeCalculator.getObjectSize;
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, PageDecoder {
     File f;
     TupleDesc td;
+    // 本表文件的I/O句柄，所有读写都通过它完成
+    final PageIO.Handle io;
+    // 为true时直接从文件的内存映射里读页
+    private volatile boolean mapped = PageIO.MAP_DEFAULT;
+
+    // 预读时一次读入的连续多页的原始数据，readPage会优先从这里取
+    private final ConcurrentHashMap<Integer, byte[]> staged = new ConcurrentHashMap<Integer, byte[]>();
+    // 每写一页加一，用来丢弃读盘期间被写过的预读数据，由staged保护
+    private long writeCount = 0;
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -30,6 +37,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td)  {
         this.f = f;
         this.td = td;
+        this.io = PageIO.open(f);
     }
 
     /**
@@ -51,7 +59,7 @@ public class HeapFile implements DbFile {
      * @return an ID uniquely identifying this HeapFile.
      */
     public int getId() {
-        return f.hashCode();
+        return f.getAbsoluteFile().hashCode(); //相对路径打开同一文件时id不变
     }
 
     /**
@@ -63,20 +71,86 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    /**
+     * Choose whether pages are read through a read-only memory mapping of the
+     * file instead of being read into a buffer first. Meant for read-mostly
+     * tables; writes always take the normal path. The default is set with the
+     * system property simpledb.mmap.
+     */
+    public void setMemoryMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped;
+    }
+
+    /**
+     * Read count consecutive pages, starting at page number first, from disk
+     * with a single request and keep their bytes until they are read with
+     * {@link #readPage(PageId)} or dropped with {@link #unstagePages(int, int)}.
+     * Used by the Prefetcher, so that a sequential scan does not pay one I/O
+     * per page.
+     */
+    void stagePages(int first, int count) {
+        int len = BufferPool.getPageSize();
+        count = Math.min(count, numPages() - first);
+        //映射模式下readPage本身就不需要读盘
+        if (count <= 0 || mapped)
+            return;
+        long before;
+        synchronized (staged) {
+            before = writeCount;
+        }
+        byte[][] data;
+        try {
+            data = io.readPages((long) first * len, len, count);
+        } catch (IOException e) {
+            return; //读不到就不预读，readPage会再读一次
+        }
+        synchronized (staged) {
+            //读盘期间有页被写过，无法判断读到的是哪个版本，整批丢弃
+            if (writeCount != before)
+                return;
+            for (int i = 0; i < data.length; i++)
+                staged.put(first + i, data[i]);
+        }
+    }
+
+    /** Drop the staged bytes of pages that were not read after all. */
+    void unstagePages(int first, int count) {
+        for (int i = 0; i < count; i++)
+            staged.remove(first + i);
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid){
         int len = BufferPool.getPageSize();
-        int offset = pid.getPageNumber() * len;
-        byte[]data = new byte[len];
+        long offset = (long) pid.getPageNumber() * len;
+        byte[]data = staged.isEmpty() ? null : staged.remove(pid.getPageNumber());
+        if (data != null) {
+            try {
+                return new HeapPage((HeapPageId) pid, data);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mapped) {
+            try {
+                ByteBuffer view = io.view(offset, len);
+                if (view == null)
+                    return null;
+                //映射在文件的生命周期内一直有效，页面直接从映射中读取元组
+                return HeapPage.mapped((HeapPageId) pid, view);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        data = new byte[len];
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(f,"r");
-            randomAccessFile.seek(offset);
-            if (randomAccessFile.read(data) == -1) {
+            if (io.read(offset, ByteBuffer.wrap(data)) == -1) {
                 return null;
             }
-            randomAccessFile.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -91,20 +165,20 @@ public class HeapFile implements DbFile {
 
     }
 
+    // see PageDecoder.java for javadocs
+    public Page decodePage(PageId pid, ByteBuffer data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         int len = BufferPool.getPageSize();
         int num = page.getId().getPageNumber();
         byte[]data = page.getPageData();
-        try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(f,"rw");
-            randomAccessFile.seek(len * num);
-            randomAccessFile.write(data);
-            randomAccessFile.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        io.write((long) len * num, data);
+        synchronized (staged) {
+            writeCount++;
+            staged.remove(num);
         }
     }
 
@@ -119,33 +193,91 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         BufferPool bufferPool = Database.getBufferPool();
+        if (bufferPool.isRowLocking())
+            return insertRow(tid, t);
         ArrayList<Page>pages = new ArrayList<>();
         int tableId = getId();
         int pid = 0;
         for (; pid < numPages(); pid++) {
             HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(tableId, pid), Permissions.READ_WRITE);
-            if(page.getNumEmptySlots() == 0)
-                Database.getBufferPool().releasePage(tid,new HeapPageId(tableId, pid));         
-            else {
+            if(page.getNumEmptySlots() == 0) {
+                if (page.isDirty() != tid) //自己改过的页要锁到事务结束，后台写线程才不会写它
+                    Database.getBufferPool().releasePage(tid,new HeapPageId(tableId, pid));
+            } else {
                 page.insertTuple(t);
                 pages.add(page);
                 break;
             }
         }
         if (pid == numPages()) {
-            HeapPage page = new HeapPage(new HeapPageId(tableId, pid), HeapPage.createEmptyPageData());
+            //先在文件末尾写一个空页，再经缓冲池插入，这样插入会被记进日志
+            HeapPageId id = new HeapPageId(tableId, pid);
+            extend(pid);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, id, Permissions.READ_WRITE);
             page.insertTuple(t);
             pages.add(page);
-            writePage(page);
         }
         return pages;
     }
 
+    /** Append an empty page to the file, unless another insert already has. */
+    private synchronized void extend(int pageNo) throws IOException {
+        if (numPages() == pageNo)
+            writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+    }
+
+    /**
+     * Insert in row locking mode: take an IX lock on each page tried, and
+     * an exclusive lock on the slot the tuple goes into. Slots whose tuple
+     * another transaction deleted but has not committed yet are skipped.
+     */
+    private ArrayList<Page> insertRow(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int pageNo = 0; ; pageNo++) {
+            if (pageNo >= numPages())
+                extend(pageNo);
+            HeapPageId id = new HeapPageId(getId(), pageNo);
+            boolean held = bufferPool.holdsLock(tid, id);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, id, LockManager.LockMode.IX);
+            synchronized (page) {
+                for (int slot = 0; slot < page.numSlots; slot++) {
+                    RecordId rid = new RecordId(id, slot);
+                    if (!page.isSlotUsed(slot) && bufferPool.tryLockRow(tid, rid)) {
+                        page.insertTuple(t, slot);
+                        bufferPool.logRowChange(tid, page, rid, null);
+                        ArrayList<Page> pages = new ArrayList<Page>();
+                        pages.add(page);
+                        return pages;
+                    }
+                }
+            }
+            if (!held)
+                bufferPool.releasePage(tid, id);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         BufferPool bufferPool = Database.getBufferPool();
         ArrayList<Page>pages = new ArrayList<>();
+        if (bufferPool.isRowLocking()) {
+            //行锁模式：页上只加意向锁，元组上加独占锁
+            RecordId rid = t.getRecordId();
+            bufferPool.lockRow(tid, rid);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, rid.getPageId(), LockManager.LockMode.IX);
+            synchronized (page) {
+                page.deleteTuple(t);
+                try {
+                    bufferPool.logRowChange(tid, page, rid, t);
+                } catch (IOException e) {
+                    throw new DbException("could not log the delete of " + rid + ": " + e);
+                }
+            }
+            pages.add(page);
+            return pages;
+        }
         HeapPage page = (HeapPage) bufferPool.getPage(tid,t.getRecordId().getPageId(),Permissions.READ_WRITE);
         page.deleteTuple(t);
         pages.add(page);
@@ -154,46 +286,87 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid){
+        return iterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy pred, or
+     * over all of them if pred is null. The predicate is evaluated on the
+     * page bytes, so tuples that do not satisfy it are never decoded.
+     *
+     * @see HeapPage#iterator(Predicate)
+     */
+    public DbFileIterator iterator(final TransactionId tid, final Predicate pred){
         return new DbFileIterator() {
             private int pid = 0;
             private BufferPool bufferPool = Database.getBufferPool();
             private HeapPage page;
             private Iterator<Tuple> it;
             private boolean isOpen = false;
+            // 大表的全表扫描通过私有的扫描环读页，不挤掉缓冲池中的热页
+            private BufferRing ring;
+            // 上一次读的页号和已经提交预读的页号，用来发现顺序访问
+            private int lastPid = -1;
+            private int prefetchedTo = 0;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 isOpen = true;
+                int n = numPages();
+                //页锁多到会被升级的大表，一开始就锁整张表，省下每页一次加锁
+                if (n > bufferPool.getLockEscalation())
+                    bufferPool.lockTable(tid, getId(), LockManager.LockMode.S);
+                ring = bufferPool.newScanRing(n);
                 getPage(pid++);
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
-                if(!isOpen ||(pid == numPages() && !it.hasNext())) 
+                if(!isOpen || it == null)
                 	return false;
-                if(it != null && it.hasNext())
-                	return true;
-                else {
+                //跳过没有（满足条件的）元组的页
+                while (!it.hasNext()) {
+                    if (pid >= numPages())
+                        return false;
                     getPage(pid++);
-                    return it.hasNext();
                 }
+                return true;
             }
 
             private boolean getPage(int pid) throws TransactionAbortedException, DbException {
                 if (!isOpen) throw new DbException("closed");
-                page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), pid), Permissions.READ_ONLY);
+                page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), pid), Permissions.READ_ONLY, ring);
+                readAhead(pid);
                 if (page == null) 
                 	return false;
-                it = page.iterator();
+                it = page.iterator(pred);
                 return true;
             }
 
+            /**
+             * Once the scan has read two pages in a row, keep the next
+             * pages of the file read ahead of it in the background.
+             */
+            private void readAhead(int pid) {
+                boolean sequential = pid == lastPid + 1 && pid > 0;
+                lastPid = pid;
+                Prefetcher prefetcher = bufferPool.getPrefetcher();
+                int window = prefetcher.window(ring);
+                //还剩不到半个窗口的预读页时才提交下一批
+                if (!sequential || window == 0 || prefetchedTo - pid > window / 2)
+                    return;
+                int first = Math.max(prefetchedTo, pid + 1);
+                int last = Math.min(numPages(), pid + 1 + window);
+                if (first < last) {
+                    prefetcher.prefetchRange(HeapFile.this, first, last - first, ring);
+                    prefetchedTo = last;
+                }
+            }
+
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (!isOpen || it == null)
+                if (!hasNext())
                     throw new NoSuchElementException();
-                if (!it.hasNext()) 
-                   getPage(pid++);               
                 return it.next();
             }
 
@@ -206,9 +379,15 @@ public class HeapFile implements DbFile {
             @Override
             public void close() {
                 pid = 0;
+                lastPid = -1;
+                prefetchedTo = 0;
                 isOpen = false;
                 page = null;
                 it = null;
+                if (ring != null) {
+                    bufferPool.releaseScanRing(ring);
+                    ring = null;
+                }
             }
         };
     }
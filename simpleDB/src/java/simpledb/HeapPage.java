@@ -3,10 +3,18 @@ package simpledb;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and decodes a tuple only when it
+ * is asked for, so a scan pays for the tuples it returns rather than for
+ * every slot of every page. Predicates can be evaluated on tuples that were
+ * not decoded yet, see {@link #iterator(Predicate)}. A page read from a
+ * memory mapped file (see {@link #mapped}) reads them straight out of the
+ * mapping.
  *
  * @see HeapFile
  * @see BufferPool
@@ -17,10 +25,17 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // 已解码或新插入的元组；已使用但为null的槽还没有从raw解码
     final Tuple tuples[];
     final int numSlots;
+    // 构造页面时的原始字节，只读；可能是内存映射文件的一段
+    private final ByteBuffer raw;
+    // 元组内各字段的偏移
+    private final int[] fieldOffsets;
     private TransactionId tid;
     private boolean dirty;
+    private volatile long lsn = -1; //最后一条日志记录的LSN，只在内存中
+    // 为null表示页面还没有被修改过，修改前的映像就是raw
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -36,31 +51,75 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * The page keeps a reference to data, which must not be modified
+     * afterwards; tuples are decoded from it when they are first accessed.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        // 原始字节从不修改，可以直接当作修改前的映像
+        this(id, ByteBuffer.wrap(data), data);
+    }
+
+    /**
+     * Create a HeapPage from a buffer, such as a frame of the off-heap
+     * {@link PageArena}. The bytes are copied, since the buffer may be
+     * reused once the page is built.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, toArray(data));
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, byte[] oldData) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < getHeaderSize() + numSlots * td.getSize())
+            throw new EOFException("page data is too short");
+        this.raw = data.slice().asReadOnlyBuffer();
 
-        // allocate and read the header slots of this page
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // the header is the only part that is read up front
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        raw.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+
+        synchronized(oldDataLock)
+        {
+        this.oldData = oldData;
         }
-        dis.close();
+    }
+
+    /**
+     * Create a HeapPage that reads its tuples straight out of the given
+     * view, such as a slice of a memory mapped file, without copying the
+     * page into a heap array. The view must hold the bytes last written for
+     * this page for as long as the page is in use; the page copies them as
+     * its before image when it is first modified.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    static HeapPage mapped(HeapPageId id, ByteBuffer view) throws IOException {
+        return new HeapPage(id, view, null);
+    }
+
+    /** @return true if this page reads undecoded tuples out of a mapping rather than a heap copy */
+    boolean isMappedView() {
+        return raw.isDirect();
+    }
 
-        setBeforeImage();
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -88,6 +147,8 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null)
+                return mapped(pid, raw.duplicate()); //没有修改过，与raw相同
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -97,6 +158,19 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Copy the raw bytes as the before image, if they still serve as one,
+     * before the page is first modified: once the page is written, a mapped
+     * view shows the new bytes.
+     */
+    private void keepBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = toArray(raw.duplicate());
+        }
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
@@ -111,27 +185,25 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in the given used slot, decoding it from the page
+     * bytes the first time it is asked for.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private synchronized Tuple getTuple(int slotId) throws NoSuchElementException {
+        Tuple t = tuples[slotId];
+        if (t != null)
+            return t;
 
         // read fields in the tuple
-        Tuple t = new Tuple(td);
+        t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        DataInputStream dis = new DataInputStream(
+                PageIO.inputStream(rawSlice(slotOffset(slotId), td.getSize())));
         try {
             for (int j=0; j<td.numFields(); j++) {
                 Field f = td.getFieldType(j).parse(dis);
@@ -141,10 +213,52 @@ public class HeapPage implements Page {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
+        tuples[slotId] = t;
         return t;
     }
 
+    /** @return a view of len raw bytes at offset */
+    private ByteBuffer rawSlice(int offset, int len) {
+        ByteBuffer b = raw.duplicate();
+        b.limit(offset + len);
+        b.position(offset);
+        return b;
+    }
+
+    /** @return the tuple in the given slot if it has been decoded, null otherwise */
+    private synchronized Tuple decodedTuple(int slotId) {
+        return tuples[slotId];
+    }
+
+    private synchronized void setTuple(int slotId, Tuple t) {
+        tuples[slotId] = t;
+    }
+
+    /**
+     * Evaluate pred on the tuple in the given used slot. If the tuple has
+     * not been decoded, it is evaluated on the page bytes: integer fields are
+     * compared in place, other fields are decoded alone.
+     */
+    boolean matches(int slotId, Predicate pred) {
+        Tuple t = decodedTuple(slotId);
+        if (t != null)
+            return pred.filter(t);
+        int field = pred.getField();
+        int offset = slotOffset(slotId) + fieldOffsets[field];
+        Type type = td.getFieldType(field);
+        if (type == Type.INT_TYPE && pred.getOperand() instanceof IntField) {
+            int value = raw.getInt(offset);
+            return IntField.compare(value, pred.getOp(), ((IntField) pred.getOperand()).getValue());
+        }
+        try {
+            Field f = type.parse(new DataInputStream(PageIO.inputStream(rawSlice(offset, type.getLen()))));
+            return f.compare(pred.getOp(), pred.getOperand());
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -162,34 +276,43 @@ public class HeapPage implements Page {
         DataOutputStream dos = new DataOutputStream(baos);
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        try {
+            dos.write(header);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[td.getSize()];
+        byte[] rawSlot = new byte[td.getSize()];
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                try {
+                    dos.write(emptySlot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
 
+            // a slot that was never decoded is copied as is
+            Tuple t = decodedTuple(i);
+            if (t == null) {
+                try {
+                    rawSlice(slotOffset(i), td.getSize()).get(rawSlot);
+                    dos.write(rawSlot);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
 
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
 
@@ -241,11 +364,18 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         if(!t.getRecordId().getPageId().equals(this.pid))throw new DbException("tuple is not on this page");
         int tid = t.getRecordId().getTupleNumber();
-        if(tuples[tid] == null)throw new DbException("tuple is not on this page");
-        if(!isSlotUsed(tid))throw new DbException("tuple slot is already empty");
+        if(tid < 0 || tid >= numSlots)throw new DbException("tuple is not on this page");
+        deleteTuple(tid);
+    }
+
+    /** Empty the given slot, as {@link #deleteTuple(Tuple)} does. */
+    void deleteTuple(int slot) throws DbException {
+        if(slot < 0 || slot >= numSlots)throw new DbException("tuple is not on this page");
+        if(!isSlotUsed(slot))throw new DbException("tuple slot is already empty");
         else {
-            tuples[tid] = null;
-            markSlotUsed(tid, false);
+            keepBeforeImage();
+            setTuple(slot, null);
+            markSlotUsed(slot, false);
         }
     }
 
@@ -261,14 +391,23 @@ public class HeapPage implements Page {
         if(getNumEmptySlots() == 0)throw new DbException("the page is full");
         for (int i = 0; i < tuples.length; i++) {
             if(!isSlotUsed(i)){
-                t.setRecordId(new RecordId(pid,i));
-                tuples[i] = t;
-                markSlotUsed(i,true);
+                insertTuple(t, i);
                 return;
             }
         }
     }
 
+    /** Add the tuple in the given empty slot. */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if(!td.equals(t.getTupleDesc()))throw new DbException("tupleDesc is mismatch");
+        if(slot < 0 || slot >= numSlots)throw new DbException("no such slot " + slot);
+        if(isSlotUsed(slot))throw new DbException("tuple slot is already used");
+        keepBeforeImage();
+        t.setRecordId(new RecordId(pid,slot));
+        setTuple(slot, t);
+        markSlotUsed(slot,true);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -285,6 +424,14 @@ public class HeapPage implements Page {
         return dirty?tid:null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -302,10 +449,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         int headerNum = i / 8;
         int moveNum = i - i / 8 * 8;
-        byte array = (byte)((header[headerNum]>>moveNum)&1);
-        String str = new String(String.valueOf(array));
-        if(str.equals("1"))return true;
-        return false;
+        return ((header[headerNum]>>moveNum)&1) == 1;
     }
 
     /**
@@ -327,13 +471,47 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        List<Tuple> tuples = new ArrayList<>();
-        for (int i = 0; i < this.tuples.length; i++) {
-            if(isSlotUsed(i))
-                tuples.add(this.tuples[i]);
-        }
-        Iterator<Tuple> iterator = tuples.iterator();
-        return iterator;
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy pred (all
+     * of them if pred is null). Tuples that do not satisfy it are never
+     * decoded. The iterator sees the slots that were in use when it was
+     * created, minus the tuples deleted since.
+     */
+    public Iterator<Tuple> iterator(final Predicate pred) {
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int slot = -1;
+            private int next = findNext(0);
+
+            private int findNext(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if (((used[i/8] >> (i%8)) & 1) == 0 || !isSlotUsed(i))
+                        continue;
+                    if (pred == null || matches(i, pred))
+                        return i;
+                }
+                return numSlots;
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                slot = next;
+                next = findNext(slot + 1);
+                return getTuple(slot);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
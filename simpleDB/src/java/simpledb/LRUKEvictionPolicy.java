@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K (O'Neil et al.): evict the page whose K-th most recent access lies
+ * furthest in the past.
+ * <p>
+ * Pages touched fewer than K times have an infinite backward K-distance and
+ * go first, oldest last access first, so a one-shot scan cannot push out
+ * B+ tree root and internal pages that are hit over and over. Time is a
+ * logical clock that ticks once per access. Each page keeps its own access
+ * history under its own monitor, so hits on different pages do not contend;
+ * choosing a victim scans all pages.
+ *
+ * @Threadsafe
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    /** The last K access times of a page, most recent first. */
+    private static class History {
+        final long[] times;
+
+        History(int k) {
+            times = new long[k];
+        }
+
+        synchronized void access(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        synchronized long last() {
+            return times[0];
+        }
+
+        /** @return the K-th most recent access time, 0 if there were fewer than K */
+        synchronized long kth() {
+            return times[times.length - 1];
+        }
+    }
+
+    private final int k;
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ConcurrentHashMap<PageId, History> histories = new ConcurrentHashMap<PageId, History>();
+
+    public LRUKEvictionPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+    }
+
+    public void pageLoaded(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            History created = new History(k);
+            h = histories.putIfAbsent(pid, created);
+            if (h == null)
+                h = created;
+        }
+        h.access(clock.incrementAndGet());
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h != null)
+            h.access(clock.incrementAndGet());
+    }
+
+    public void pageRemoved(PageId pid) {
+        histories.remove(pid);
+    }
+
+    public PageId chooseVictim(Candidates candidates) {
+        PageId victim = null;
+        long victimKth = 0, victimLast = 0;
+        for (PageId pid : histories.keySet()) {
+            History h = histories.get(pid);
+            if (h == null || !candidates.isEvictable(pid))
+                continue;
+            long kth = h.kth();
+            long last = h.last();
+            //K距离越大越先换出；都不足K次访问时按最近一次访问的先后
+            if (victim == null || kth < victimKth || (kth == victimKth && last < victimLast)) {
+                victim = pid;
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,521 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager grants locks to transactions on behalf of the BufferPool.
+ * Locks form a hierarchy: tables (see {@link #tableKey}), pages
+ * ({@link PageId}s) and, in the BufferPool's row locking mode, tuples
+ * ({@link RecordId}s). A lock has one of the modes of {@link LockMode}:
+ * shared and exclusive locks, and the intention locks a transaction takes
+ * on a table or page before locking pages or tuples in it.
+ * <p>
+ * Every key that is locked (or waited on) owns a LockQueue, which holds the
+ * locks currently granted on it and a FIFO queue of waiting requests.
+ * A request that cannot be granted immediately parks on the queue's monitor
+ * until a release makes it grantable, so waiting transactions sleep instead
+ * of spinning. Requests are granted in arrival order; the only exception is
+ * an upgrade (a holder asking for a stronger mode), which is queued ahead of
+ * every ordinary waiter since it already holds the key.
+ * <p>
+ * Besides the queues, the lock manager indexes the keys each transaction
+ * holds, so that releasing all locks of a completing transaction costs as
+ * much as the locks it held, not the size of the lock table.
+ * <p>
+ * Every blocked request is reported to a {@link DeadlockDetector}, which
+ * keeps the waits-for graph up to date and fails the request of the victim
+ * when a cycle is found.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Lock modes. IS and IX announce that the holder takes shared or
+     * exclusive locks below the locked table or page; they are compatible
+     * with each other, so several writers can lock different pages of one
+     * table or tuples of one page. SIX is S plus IX: the holder reads
+     * everything below and locks what it writes.
+     */
+    public enum LockMode {
+        IS, IX, S, SIX, X;
+
+        /** @return true if a lock in this mode can be held along with one in the other */
+        public boolean isCompatible(LockMode other) {
+            switch (this) {
+            case IS:
+                return other != X;
+            case IX:
+                return other == IS || other == IX;
+            case S:
+                return other == IS || other == S;
+            case SIX:
+                return other == IS;
+            default:
+                return false;
+            }
+        }
+
+        /** @return the weakest mode that grants what both this and the other mode grant */
+        public LockMode combine(LockMode other) {
+            if (this == other || other == IS)
+                return this;
+            if (this == IS)
+                return other;
+            if (this == X || other == X)
+                return X;
+            return SIX; // IX、S、SIX两两合起来都是SIX
+        }
+
+        /** @return true if a lock in this mode on a table or page covers a
+            lock in the given mode on everything below it */
+        public boolean covers(LockMode below) {
+            if (this == X)
+                return true;
+            return (this == S || this == SIX) && (below == S || below == IS);
+        }
+
+        /** @return the intention mode to hold above a lock in this mode */
+        public LockMode intention() {
+            return this == S || this == IS ? IS : IX;
+        }
+    }
+
+    /** The key of a table's lock. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId * 31 + 7;
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** @return the key to lock a whole table with */
+    public static Object tableKey(int tableId) {
+        return new TableKey(tableId);
+    }
+
+    /** A lock granted to a transaction on a key. */
+    static class Lock {
+        final TransactionId tid;
+        LockMode mode;
+
+        Lock(TransactionId tid, LockMode mode) {
+            this.tid = tid;
+            this.mode = mode;
+        }
+    }
+
+    /** A pending lock request parked in a LockQueue. */
+    static class LockRequest {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean isUpgrade;
+        boolean granted = false;
+
+        LockRequest(TransactionId tid, LockMode mode, boolean isUpgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.isUpgrade = isUpgrade;
+        }
+    }
+
+    /**
+     * Granted locks and waiting requests of a single key. All fields are
+     * protected by the queue's own monitor, which is also the condition
+     * waiters park on.
+     */
+    static class LockQueue {
+        final LinkedHashMap<TransactionId, Lock> holders = new LinkedHashMap<TransactionId, Lock>();
+        final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+        // 队列为空时会从lockMap中移除，移除后的队列不能再使用
+        boolean retired = false;
+    }
+
+    /**
+     * The keys a transaction holds locks on. Protected by its own monitor,
+     * which is taken after a queue's monitor, never before.
+     */
+    private static class HeldLocks {
+        final HashSet<Object> keys = new HashSet<Object>();
+        // 最后一个锁释放后从heldLocks中移除，移除后的集合不能再使用
+        boolean removed = false;
+    }
+
+    private final ConcurrentHashMap<Object, LockQueue> lockMap; // 表、PageId或RecordId
+    // 每个事务持有锁的键，提交或中止时只需释放这些锁；其大小也供牺牲者选择策略使用
+    private final ConcurrentHashMap<TransactionId, HeldLocks> heldLocks;
+    private final DeadlockDetector detector;
+
+    public LockManager() {
+        lockMap = new ConcurrentHashMap<Object, LockQueue>();
+        heldLocks = new ConcurrentHashMap<TransactionId, HeldLocks>();
+        detector = new DeadlockDetector(this);
+    }
+
+    public DeadlockDetector getDeadlockDetector() {
+        return detector;
+    }
+
+    /**
+     * Acquire a lock on the specified page, blocking until it is granted.
+     *
+     * @param pid the page to lock
+     * @param tid the transaction requesting the lock
+     * @param isShared true for a shared (read) lock, false for an exclusive one
+     * @param timeoutMs the longest time to wait, in milliseconds; 0 waits forever
+     * @return true if the lock was granted, false if the wait timed out or
+     *   the transaction was chosen as a deadlock victim
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean acquireLock(PageId pid, TransactionId tid, boolean isShared, long timeoutMs)
+            throws InterruptedException {
+        return acquireLock(pid, tid, isShared ? LockMode.S : LockMode.X, timeoutMs);
+    }
+
+    /**
+     * Acquire a lock in the given mode on a table, page or tuple, blocking until it
+     * is granted. A transaction already holding the key is granted the
+     * combination of both modes.
+     *
+     * @param key the table key, PageId or RecordId to lock
+     * @see #acquireLock(PageId, TransactionId, boolean, long)
+     */
+    public boolean acquireLock(Object key, TransactionId tid, LockMode mode, long timeoutMs)
+            throws InterruptedException {
+        while (true) {
+            LockQueue queue = getQueue(key);
+            LockRequest request;
+            TransactionId victim;
+            synchronized (queue) {
+                if (queue.retired)
+                    continue;
+                request = enqueue(key, queue, tid, mode);
+                if (request == null)
+                    return true;
+                victim = detector.addWaiter(tid, queue, blockers(queue, request));
+                if (tid.equals(victim)) {
+                    //自己就是死锁的牺牲者，直接放弃请求
+                    queue.waiters.remove(request);
+                    detector.removeWaiter(tid);
+                    grantWaiters(key, queue);
+                    return false;
+                }
+            }
+            //唤醒牺牲者时不能持有本页的队列监视器，否则两个队列之间可能互相等待
+            if (victim != null)
+                detector.wake(victim);
+            synchronized (queue) {
+                return await(key, queue, request, timeoutMs);
+            }
+        }
+    }
+
+    /**
+     * Acquire a lock in the given mode only if it can be granted right away;
+     * never waits.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLock(Object key, TransactionId tid, LockMode mode) {
+        while (true) {
+            LockQueue queue = getQueue(key);
+            synchronized (queue) {
+                if (queue.retired)
+                    continue;
+                Lock held = queue.holders.get(tid);
+                LockMode wanted = held == null ? mode : held.mode.combine(mode);
+                if (held != null && wanted == held.mode)
+                    return true;
+                if (!compatible(queue, wanted, tid) || (held == null && !queue.waiters.isEmpty())) {
+                    retireIfUnused(key, queue);
+                    return false;
+                }
+                if (held != null)
+                    held.mode = wanted;
+                else
+                    grant(key, queue, tid, wanted);
+                return true;
+            }
+        }
+    }
+
+    private LockQueue getQueue(Object key) {
+        LockQueue queue = lockMap.get(key);
+        if (queue == null) {
+            LockQueue created = new LockQueue();
+            queue = lockMap.putIfAbsent(key, created);
+            if (queue == null)
+                queue = created;
+        }
+        return queue;
+    }
+
+    /**
+     * Grant the request right away if possible, otherwise append it to the
+     * wait queue. Must be called while holding the queue's monitor.
+     *
+     * @return null if the lock was granted, the queued request otherwise
+     */
+    private LockRequest enqueue(Object key, LockQueue queue, TransactionId tid, LockMode mode) {
+        Lock held = queue.holders.get(tid);
+        if (held != null) {
+            //已持有的锁已经覆盖请求的模式，锁重入
+            LockMode wanted = held.mode.combine(mode);
+            if (wanted == held.mode)
+                return null;
+            //升级：与其他持锁者都相容时才能直接升级
+            if (compatible(queue, wanted, tid)) {
+                held.mode = wanted;
+                return null;
+            }
+            LockRequest upgrade = new LockRequest(tid, wanted, true);
+            //升级请求排在所有普通等待者之前
+            int pos = 0;
+            for (LockRequest r : queue.waiters) {
+                if (!r.isUpgrade)
+                    break;
+                pos++;
+            }
+            queue.waiters.add(pos, upgrade);
+            return upgrade;
+        }
+
+        //FIFO：前面已经有人在等，就不能插队
+        if (queue.waiters.isEmpty() && compatible(queue, mode, null)) {
+            grant(key, queue, tid, mode);
+            return null;
+        }
+        LockRequest request = new LockRequest(tid, mode, false);
+        queue.waiters.addLast(request);
+        return request;
+    }
+
+    private void grant(Object key, LockQueue queue, TransactionId tid, LockMode mode) {
+        queue.holders.put(tid, new Lock(tid, mode));
+        while (true) {
+            HeldLocks held = heldLocks.get(tid);
+            if (held == null) {
+                HeldLocks created = new HeldLocks();
+                held = heldLocks.putIfAbsent(tid, created);
+                if (held == null)
+                    held = created;
+            }
+            synchronized (held) {
+                if (!held.removed) {
+                    held.keys.add(key);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void unindex(Object key, TransactionId tid) {
+        HeldLocks held = heldLocks.get(tid);
+        if (held == null)
+            return;
+        synchronized (held) {
+            held.keys.remove(key);
+            if (held.keys.isEmpty() && !held.removed) {
+                held.removed = true;
+                heldLocks.remove(tid, held);
+            }
+        }
+    }
+
+    /** @return the keys the transaction holds locks on, as of now */
+    private List<Object> keysHeld(TransactionId tid) {
+        HeldLocks held = heldLocks.get(tid);
+        if (held == null)
+            return Collections.emptyList();
+        synchronized (held) {
+            return new ArrayList<Object>(held.keys);
+        }
+    }
+
+    /**
+     * The transactions a queued request has to wait for: the holders whose
+     * locks conflict with it, and everybody queued ahead of it. Must be
+     * called while holding the queue's monitor.
+     */
+    private Set<TransactionId> blockers(LockQueue queue, LockRequest request) {
+        HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+        for (Lock lock : queue.holders.values()) {
+            if (!lock.tid.equals(request.tid) && !request.mode.isCompatible(lock.mode))
+                blockers.add(lock.tid);
+        }
+        for (LockRequest r : queue.waiters) {
+            if (r == request)
+                break;
+            blockers.add(r.tid);
+        }
+        return blockers;
+    }
+
+    /** @return true if the mode is compatible with the locks of all holders but self */
+    private boolean compatible(LockQueue queue, LockMode mode, TransactionId self) {
+        for (Lock lock : queue.holders.values()) {
+            if (!lock.tid.equals(self) && !mode.isCompatible(lock.mode))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Park on the queue until the request is granted or the timeout expires.
+     * Must be called while holding the queue's monitor.
+     */
+    private boolean await(Object key, LockQueue queue, LockRequest request, long timeoutMs)
+            throws InterruptedException {
+        long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+        try {
+            while (!request.granted) {
+                if (detector.isVictim(request.tid))
+                    return false;
+                if (deadline == 0) {
+                    queue.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return false;
+                    queue.wait(remaining);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            if (!request.granted)
+                throw e;
+            Thread.currentThread().interrupt(); //锁已经授予，不能当作没拿到，只保留中断状态
+            return true;
+        } finally {
+            //超时、中断或线程被强制终止时，把请求从等待队列中撤下
+            detector.removeWaiter(request.tid);
+            if (!request.granted) {
+                queue.waiters.remove(request);
+                grantWaiters(key, queue);
+            }
+        }
+    }
+
+    /**
+     * Grant as many waiting requests as possible, in queue order, and wake
+     * the waiters up. Must be called while holding the queue's monitor.
+     */
+    private void grantWaiters(Object key, LockQueue queue) {
+        boolean grantedAny = false;
+        Iterator<LockRequest> it = queue.waiters.iterator();
+        while (it.hasNext()) {
+            LockRequest r = it.next();
+            if (!compatible(queue, r.mode, r.tid))
+                break;
+            if (r.isUpgrade)
+                queue.holders.get(r.tid).mode = r.mode;
+            else
+                grant(key, queue, r.tid, r.mode);
+            r.granted = true;
+            it.remove();
+            detector.removeWaiter(r.tid);
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            //持锁者变了，剩下的等待者所等待的对象也随之改变
+            for (LockRequest r : queue.waiters)
+                detector.updateWaiter(r.tid, blockers(queue, r));
+            queue.notifyAll();
+        }
+        retireIfUnused(key, queue);
+    }
+
+    private void retireIfUnused(Object key, LockQueue queue) {
+        if (queue.holders.isEmpty() && queue.waiters.isEmpty()) {
+            queue.retired = true;
+            lockMap.remove(key, queue);
+        }
+    }
+
+    /**
+     * Release the lock the transaction holds on the table, page or tuple, handing
+     * it on to the next waiters in line.
+     *
+     * @return true if a lock was released
+     */
+    public boolean releaseLock(Object key, TransactionId tid) {
+        LockQueue queue = lockMap.get(key);
+        if (queue == null)
+            return false;
+        synchronized (queue) {
+            if (queue.holders.remove(tid) == null)
+                return false;
+            unindex(key, tid);
+            grantWaiters(key, queue);
+            return true;
+        }
+    }
+
+    /**
+     * Release every lock the transaction holds, including locks on pages
+     * that are no longer cached in the BufferPool.
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        for (Object key : keysHeld(tid))
+            releaseLock(key, tid);
+    }
+
+    /**
+     * Release the page locks the transaction holds in the given table, once
+     * a table lock covers them.
+     *
+     * @return the number of locks released
+     */
+    public int releasePageLocks(TransactionId tid, int tableId) {
+        int released = 0;
+        for (Object key : keysHeld(tid)) {
+            if (key instanceof PageId && ((PageId) key).getTableId() == tableId
+                    && releaseLock(key, tid))
+                released++;
+        }
+        return released;
+    }
+
+    /** @return the number of table, page and tuple locks the transaction currently holds */
+    public int getNumLocksHeld(TransactionId tid) {
+        HeldLocks held = heldLocks.get(tid);
+        if (held == null)
+            return 0;
+        synchronized (held) {
+            return held.keys.size();
+        }
+    }
+
+    /** Return true if the transaction holds any lock on the table, page or tuple. */
+    public boolean holdsLock(Object key, TransactionId tid) {
+        return getLockMode(key, tid) != null;
+    }
+
+    /** @return the mode the transaction holds the table, page or tuple in, or null */
+    public LockMode getLockMode(Object key, TransactionId tid) {
+        LockQueue queue = lockMap.get(key);
+        if (queue == null)
+            return null;
+        synchronized (queue) {
+            Lock held = queue.holders.get(tid);
+            return held == null ? null : held.mode;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer is the in-memory tail of the log. Records are serialized into a
+ * ring of direct ByteBuffers, filled in turn, and written to the
+ * {@link LogSegments} with one gathering write when the ring is full or when
+ * the log is forced, instead of one small write per field.
+ * <p>
+ * Positions are positions in the log: {@link #position()} is the position
+ * the next byte written will have once it reaches the segments, which is
+ * what the log uses as LSN. LogBuffer is not thread safe; the LogFile that
+ * owns it serializes all access.
+ */
+class LogBuffer extends OutputStream {
+
+    /** Total size of the ring, set with the system property simpledb.logBufferSize. */
+    static final int SIZE = Integer.getInteger("simpledb.logBufferSize", 1 << 20);
+    private static final int BUFFERS = 16;
+
+    private final ByteBuffer[] ring = new ByteBuffer[BUFFERS];
+    private int tail = 0; // 正在填写的缓冲区
+    private final LogSegments segments;
+    private long written; // 已写入段文件的位置，即ring[0]第一个字节的位置
+
+    private long numWrites = 0;
+    private long bytesWritten = 0;
+
+    /**
+     * @param segments the segments the log is written to
+     * @param position the position at which the next byte goes
+     */
+    LogBuffer(LogSegments segments, long position) {
+        this.segments = segments;
+        int size = Math.max(SIZE / BUFFERS, 512);
+        for (int i = 0; i < BUFFERS; i++)
+            ring[i] = ByteBuffer.allocateDirect(size);
+        reset(position);
+    }
+
+    /** Drop the buffered bytes and continue at the given position. */
+    void reset(long position) {
+        this.written = position;
+        for (int i = 0; i <= tail; i++)
+            ring[i].clear();
+        tail = 0;
+    }
+
+    /** @return the position the next byte written will have in the log */
+    long position() {
+        return written + buffered();
+    }
+
+    /** @return the position up to which the segments hold the written bytes */
+    long getWrittenPosition() {
+        return written;
+    }
+
+    private long buffered() {
+        return (long) tail * ring[0].capacity() + ring[tail].position();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!ring[tail].hasRemaining())
+            advance();
+        ring[tail].put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!ring[tail].hasRemaining())
+                advance();
+            int n = Math.min(len, ring[tail].remaining());
+            ring[tail].put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void advance() throws IOException {
+        if (tail == BUFFERS - 1)
+            writeOut(); //环满了，整体写出
+        else
+            tail++;
+    }
+
+    /** Write all buffered bytes to the segments, without forcing them. */
+    void writeOut() throws IOException {
+        long n = buffered();
+        if (n == 0)
+            return;
+        ByteBuffer[] full = new ByteBuffer[tail + 1];
+        for (int i = 0; i <= tail; i++) {
+            ring[i].flip();
+            full[i] = ring[i];
+        }
+        segments.write(full, written);
+        written += n;
+        numWrites++;
+        bytesWritten += n;
+        reset(written);
+    }
+
+    /** @return the number of writes of buffered bytes to the segments */
+    long getNumWrites() {
+        return numWrites;
+    }
+
+    /** @return the number of bytes written to the segments */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -3,7 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,42 +45,88 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds a single long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed-size segment files next to the
+log file (see {@link LogSegments}).  Log records are variable length,
+and may span two segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer representing the position
+in the log where the record began.  This position is the record's LSN.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA,
+COMPRESSED, BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
+after image.  The before image is the page as of its previous update
+record, not as of the start of the transaction, so that the records of a
+page form a chain that can be replayed forwards or backwards.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An image is a byte page
+type (HEAP_PAGE or BTREE_PAGE), the integer table id and page number,
+for B+ tree pages a byte page category, then the integer length of the
+page data and the data itself.  Pages are rebuilt by the {@link
+PageDecoder} of their table.
+
+<li>DELTA RECORDS replace UPDATE records when they are smaller.  They
+consist of the page type and id, as in a page image, followed by a
+{@link PageDelta} holding only the byte ranges the update changed.
+
+<li>COMPRESSED RECORDS replace UPDATE and DELTA records when log
+compression is on (see {@link #COMPRESSION_LEVEL}) and deflating pays off.
+They consist of the page type and id, as in a page image, the integer type
+of the record they replace, the integer length of what follows the page id
+in that record, then the integer length of those bytes deflated and the
+deflated bytes.  Records read back as the type they replace.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction, then an
+integer count of the number of dirty pages, as well as the page type and
+id, as in a page image, and a long integer recLSN for each dirty page.
+The recLSN is the first update record of the page that is not on disk.
+
+<li> Checkpoints are fuzzy: they do not write pages out, and do not stop
+transactions while they are taken.  The pages of the dirty page table are
+handed to the {@link PageWriter}, which writes them back in the background.
 
 </ul>
 
+<p> Records are not written to the file directly but to a {@link LogBuffer},
+which writes them out in large appends when it fills up or when the log is
+forced.  Each page remembers the LSN of the last update record written for
+it, and the BufferPool only forces the log up to that LSN before writing the
+page out (write-ahead logging).
+
+<p> Rollback and recovery follow ARIES.  {@link #rollback} undoes the
+update records of a transaction, newest first, and logs the restored
+pages as updates of the transaction (compensation), so that replaying the
+log repeats the rollback.  {@link #recover} makes an analysis pass from
+the last checkpoint to find the transactions that never finished, a redo
+pass that repeats history for the pages the dirty page table says may not
+be on disk, and an undo pass that rolls back the unfinished transactions
+and logs ABORT records for them.  This lets the BufferPool write pages of
+running transactions (STEAL) and leave the pages of committed ones in
+memory (NO FORCE).
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile raf; // 只存最后一个检查点的LSN
+    private final LogSegments segments;
+    private final LogBuffer buffer; // 日志尾部，protected by this
+    private final DataOutputStream out; // 向buffer写记录
+    long forcedOffset = 0; // 此前的记录都已落盘；protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,8 +134,14 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int COMPRESSED_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // page types of before and after images
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_PAGE = 2;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -93,6 +151,65 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // 每个活跃事务的更新记录的LSN，回滚时倒序撤销
+    HashMap<Long,ArrayList<Long>> tidToUpdates = new HashMap<Long,ArrayList<Long>>();
+
+    // bytes of log written by each live transaction; read without the log
+    // monitor by the deadlock detector
+    ConcurrentHashMap<Long,Long> tidToLogBytes = new ConcurrentHashMap<Long,Long>();
+
+    /**
+     * How long, in microseconds, the group commit flusher waits after the
+     * first commit of a batch for more commits to join it, set with the
+     * system property simpledb.groupCommitWindow. With 0 a batch is just
+     * the commits that arrive while the previous fsync is running.
+     */
+    static final long GROUP_COMMIT_WINDOW = Long.getLong("simpledb.groupCommitWindow", 0);
+    /** An idle flusher thread exits after this many milliseconds. */
+    private static final long FLUSHER_IDLE_MS = 1000;
+
+    /**
+     * Deflate level of update records, set with the system property
+     * simpledb.logCompression: 0 (the default) writes them raw, 1 (fastest)
+     * to 9 (smallest) compresses them.  Page images and the tuples in deltas
+     * are mostly zero padding and empty slots, so even the fastest level
+     * shrinks them several times.
+     */
+    static final int COMPRESSION_LEVEL = Integer.getInteger("simpledb.logCompression", 0);
+    /** Update records smaller than this are not worth deflating. */
+    static final int MIN_COMPRESSED_SIZE = 64;
+
+    private Deflater deflater = null; // null when compression is off; protected by this
+    long updateBytes = 0; // 压缩前的更新记录字节数；protected by this
+    long loggedUpdateBytes = 0; // 实际写入日志的字节数；protected by this
+
+    long appendedCommits = 0; // commit records appended to the log; protected by this
+
+    // 以下字段由commitLock保护
+    private final Object commitLock = new Object();
+    private long durableCommits = 0; // commit records known to be on disk
+    private long requestedCommits = 0; // highest commit record a committer waits for
+    private Thread flusher = null;
+
+    // 刷盘失败的原因；此后日志不再接受记录，也不再刷盘，见force
+    private volatile IOException failure = null;
+
+    /** Default number of threads replaying the redo pass of recovery, set
+        with the system property simpledb.recoveryThreads. */
+    static final int RECOVERY_THREADS = Math.max(1,
+            Integer.getInteger("simpledb.recoveryThreads", Runtime.getRuntime().availableProcessors()));
+    private static final Record END_OF_REDO = new Record();
+
+    private volatile int recoveryThreads = RECOVERY_THREADS;
+    // 最近一次恢复的重做统计
+    private volatile long redoRecords = 0;
+    private volatile long redoNanos = 0;
+
+    private final PageIO.IOStats commitLatency = new PageIO.IOStats();
+    private final LongAdder groupCommits = new LongAdder();
+    private final LongAdder groupCommitBatches = new LongAdder();
+    private volatile long maxBatchSize = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,7 +224,11 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        buffer = new LogBuffer(segments, segments.end());
+        out = new DataOutputStream(buffer);
         recoveryUndecided = true;
+        setCompression(COMPRESSION_LEVEL);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -124,14 +245,17 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
+        checkFailure();
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset(0);
+            currentOffset = 0;
+            buffer.reset(currentOffset);
+            forcedOffset = 0;
         }
     }
 
@@ -144,6 +268,9 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
+        // 行锁模式下的元组修改先在页上就地撤销，这要先于取缓冲池的锁
+        Database.getBufferPool().undoRowChanges(tid);
+
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
@@ -158,47 +285,196 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToUpdates.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Commits are forced in groups: the record is appended under the log
+        monitor, then the caller waits, without holding the monitor, until
+        the flusher thread has forced a batch of commit records that
+        includes it. A single fsync thus makes a whole batch durable.
+        If that force fails, the log stops (see {@link #force}).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        long seq;
+        ArrayList<Long> updates;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.position();
+            seq = ++appendedCommits;
+            tidToFirstLogRecord.remove(tid.getId());
+            updates = tidToUpdates.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+        }
+        try {
+            awaitDurable(seq);
+        } catch (IOException e) {
+            if (updates != null) {
+                synchronized (this) {
+                    tidToUpdates.put(tid.getId(), updates); //留给rollbackFailed撤销
+                }
+            }
+            throw e;
+        }
+        commitLatency.record(System.nanoTime() - start);
+    }
+
+    /** Wait until the seq-th commit record has been forced to disk. */
+    private void awaitDurable(long seq) throws IOException {
+        synchronized (commitLock) {
+            if (seq > requestedCommits) {
+                requestedCommits = seq;
+                if (flusher == null) {
+                    flusher = new Thread(new Runnable() {
+                        public void run() {
+                            flushCommits();
+                        }
+                    }, "simpledb-group-commit");
+                    flusher.setDaemon(true);
+                    flusher.start();
+                }
+                commitLock.notifyAll();
+            }
+            boolean interrupted = false;
+            while (durableCommits < seq && failure == null) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; //提交记录已经写入，必须等它落盘
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (durableCommits < seq)
+                throw new IOException("group commit failed", failure);
+        }
+    }
+
+    /** Body of the flusher thread: force a batch whenever a committer waits. */
+    private void flushCommits() {
+        while (true) {
+            synchronized (commitLock) {
+                while (requestedCommits <= durableCommits) {
+                    try {
+                        commitLock.wait(FLUSHER_IDLE_MS);
+                    } catch (InterruptedException e) {
+                        // 只在空闲时退出
+                    }
+                    if (requestedCommits <= durableCommits) {
+                        flusher = null;
+                        return;
+                    }
+                }
+            }
+            if (GROUP_COMMIT_WINDOW > 0) {
+                try {
+                    Thread.sleep(GROUP_COMMIT_WINDOW / 1000, (int) (GROUP_COMMIT_WINDOW % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    // 提前刷盘即可
+                }
+            }
+            try {
+                force();
+            } catch (IOException e) {
+                synchronized (commitLock) {
+                    flusher = null; //force已唤醒所有等待的提交者
+                }
+                return;
+            }
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Release the committers whose commit records a force made durable. */
+    private void commitsForced(long forced) {
+        synchronized (commitLock) {
+            long batch = forced - durableCommits;
+            if (batch <= 0)
+                return;
+            durableCommits = forced;
+            groupCommits.add(batch);
+            groupCommitBatches.increment();
+            if (batch > maxBatchSize)
+                maxBatchSize = batch;
+            commitLock.notifyAll();
+        }
+    }
+
+    /** @return the latency of logCommit, including the wait for its fsync */
+    public PageIO.IOStats getCommitLatency() {
+        return commitLatency;
+    }
+
+    /** @return the number of fsyncs that made at least one commit durable */
+    public long getNumCommitBatches() {
+        return groupCommitBatches.sum();
+    }
+
+    /** @return the average number of commits made durable by one fsync */
+    public double getAvgCommitBatchSize() {
+        long batches = groupCommitBatches.sum();
+        return batches == 0 ? 0 : (double) groupCommits.sum() / batches;
+    }
+
+    /** @return the largest number of commits made durable by one fsync */
+    public long getMaxCommitBatchSize() {
+        return maxBatchSize;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If only a
+        small part of the page changed, a DELTA record with just the
+        changed bytes is written instead.  With compression on, the record
+        is written as a COMPRESSED record if its body deflates to less.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, true);
+    }
+
+    /** Write an update record for a tuple change made in row locking
+        mode.  Unlike those of logWrite, it is not undone by {@link
+        #rollback}: the BufferPool undoes the tuple changes of an aborting
+        transaction itself, in place.  Recovery undoes it like any other.
+
+        @see BufferPool#undoRowChanges
+    */
+    synchronized long logRowWrite(TransactionId tid, Page before, Page after)
+        throws IOException {
+        return logWrite(tid, before, after, false);
+    }
+
+    private long logWrite(TransactionId tid, Page before, Page after, boolean rolledBack)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        long start = currentOffset;
         /* update record conists of
 
            record type
@@ -207,92 +483,325 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        byte[] afterData = after.getPageData();
+        PageDelta delta = PageDelta.diff(before.getPageData(), afterData);
+        if (delta != null && delta.encodedSize() >= afterData.length)
+            delta = null;
+        int type = delta != null ? DELTA_RECORD : UPDATE_RECORD;
+        if (deflater == null) {
+            out.writeInt(type);
+            out.writeLong(tid.getId());
+            writePageId(out, after.getId());
+            writeUpdate(out, before, after, delta);
+        } else {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeUpdate(new DataOutputStream(body), before, after, delta);
+            byte[] raw = body.toByteArray();
+            byte[] packed = raw.length < MIN_COMPRESSED_SIZE ? null : compress(raw);
+            if (packed != null) {
+                out.writeInt(COMPRESSED_RECORD);
+                out.writeLong(tid.getId());
+                writePageId(out, after.getId());
+                out.writeInt(type);
+                out.writeInt(raw.length);
+                out.writeInt(packed.length);
+                out.write(packed);
+            } else {
+                out.writeInt(type);
+                out.writeLong(tid.getId());
+                writePageId(out, after.getId());
+                out.write(raw);
+            }
+            updateBytes += raw.length;
+            loggedUpdateBytes += packed != null ? packed.length : raw.length;
+        }
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
+
+        if (rolledBack) {
+            ArrayList<Long> updates = tidToUpdates.get(tid.getId());
+            if (updates == null) {
+                updates = new ArrayList<Long>();
+                tidToUpdates.put(tid.getId(), updates);
+            }
+            updates.add(start);
+        }
+        Long written = tidToLogBytes.get(tid.getId());
+        tidToLogBytes.put(tid.getId(), (written == null ? 0 : written) + currentOffset - start);
+        Debug.log("WRITE OFFSET = " + currentOffset);
+        return start;
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /** Write what follows the page id in an UPDATE record, or in a DELTA
+        record if delta is not null. */
+    private void writeUpdate(DataOutput out, Page before, Page after, PageDelta delta)
+            throws IOException {
+        if (delta != null) {
+            delta.write(out);
+        } else {
+            byte[] beforeData = before.getPageData();
+            out.writeInt(beforeData.length);
+            out.write(beforeData);
+            writePageData(out, after);
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Read what follows the page id in an UPDATE or DELTA record into r. */
+    private void readUpdate(DataInput in, Record r) throws IOException {
+        if (r.type == DELTA_RECORD) {
+            r.delta = PageDelta.read(in);
+        } else {
+            r.before = new byte[in.readInt()];
+            in.readFully(r.before);
+            readPageId(in);
+            r.after = new byte[in.readInt()];
+            in.readFully(r.after);
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** @return the deflated bytes, or null if they are no smaller */
+    private byte[] compress(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] packed = new byte[raw.length];
+        int n = 0;
+        while (!deflater.finished() && n < packed.length)
+            n += deflater.deflate(packed, n, packed.length - n);
+        return deflater.finished() ? Arrays.copyOf(packed, n) : null;
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** @return the inflated bytes of the COMPRESSED record at lsn */
+    private static byte[] decompress(byte[] packed, int length, long lsn) throws IOException {
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, raw.length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += k;
+            }
+            if (n != raw.length)
+                throw new IOException("corrupt log record at " + lsn);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt log record at " + lsn, e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Set the deflate level of update records from now on; 0 turns
+        compression off.  Records already in the log are read back
+        whatever the level.
+    */
+    public synchronized void setCompression(int level) {
+        if (level < 0 || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("compression level must be between 0 and 9");
+        if (deflater != null)
+            deflater.end();
+        deflater = level == 0 ? null : new Deflater(level);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** @return the ratio of the bytes update records took in the log to
+        what they would have taken uncompressed, since compression was
+        turned on; 1 if it never was
+    */
+    public synchronized double getCompressionRatio() {
+        return updateBytes == 0 ? 1 : (double) loggedUpdateBytes / updateBytes;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+    /** Return the number of bytes of update records the transaction has
+        written to the log so far.
+    */
+    public long getLogBytesWritten(TransactionId tid) {
+        Long written = tidToLogBytes.get(tid.getId());
+        return written == null ? 0 : written;
+    }
+
+    /** Return true if the log holds update records of the transaction
+        that a rollback would undo, that is, if it logged updates and has
+        not committed or aborted since.
+    */
+    public synchronized boolean hasUpdates(TransactionId tid) {
+        return tidToUpdates.containsKey(tid.getId());
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
+        writePageId(out, p.getId());
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
+
+    /** Write the page type and id that start a page image. */
+    private void writePageId(DataOutput out, PageId pid) throws IOException {
+        if (pid instanceof HeapPageId) {
+            out.writeByte(HEAP_PAGE);
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+        } else if (pid instanceof BTreePageId) {
+            out.writeByte(BTREE_PAGE);
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+            out.writeByte(((BTreePageId) pid).pgcateg());
+        } else {
+            throw new IOException("cannot log pages with ids of " + pid.getClass().getName());
+        }
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read the id of a page image written by writePageData. */
+    private PageId readPageId(DataInput in) throws IOException {
+        byte type = in.readByte();
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pageNo);
+        case BTREE_PAGE:
+            return new BTreePageId(tableId, pageNo, in.readByte());
+        default:
+            throw new IOException("unknown page type " + type + " in log");
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return rebuildPage(pid, pageData);
+    }
 
+    /** Rebuild a page from its bytes with the PageDecoder of its table. */
+    Page rebuildPage(PageId pid, byte[] pageData) throws IOException {
+        DbFile file;
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            throw new IOException("log record for unknown table " + pid.getTableId());
+        }
+        if (!(file instanceof PageDecoder))
+            throw new IOException("cannot rebuild pages of table " + pid.getTableId() + " from the log");
+        return ((PageDecoder) file).decodePage(pid, ByteBuffer.wrap(pageData));
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Replay a DELTA record on a page.
+        @param undo true to restore the bytes from before the update,
+          false to redo the update
+        @return the page with the delta applied
+    */
+    Page applyDelta(Page page, PageDelta delta, boolean undo) throws IOException {
+        byte[] data = page.getPageData();
+        return rebuildPage(page.getId(), undo ? delta.undo(data) : delta.redo(data));
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** A log record read back by rollback or recovery. */
+    static class Record {
+        int type;
+        long tid;
+        long lsn;
+        PageId pid; // UPDATE and DELTA records
+        byte[] before; // UPDATE records
+        byte[] after;
+        PageDelta delta; // DELTA records
+        HashMap<Long,Long> transactions; // CHECKPOINT records
+        HashMap<PageId,Long> dirtyPages;
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        /** @return the page image after the update, given the image before it */
+        byte[] redo(byte[] data) {
+            return delta != null ? delta.redo(data) : after;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        /** @return the page image before the update, given the image after it */
+        byte[] undo(byte[] data) {
+            return delta != null ? delta.undo(data) : before;
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Read the record starting at the given LSN from a stream positioned there.
+        @throws IOException if the record is incomplete or corrupt, as
+          the last record may be after a crash
+    */
+    Record readRecord(DataInput in, long lsn) throws IOException {
+        Record r = new Record();
+        r.lsn = lsn;
+        r.type = in.readInt();
+        r.tid = in.readLong();
+        switch (r.type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        case UPDATE_RECORD:
+        case DELTA_RECORD:
+            r.pid = readPageId(in);
+            readUpdate(in, r);
+            break;
+        case COMPRESSED_RECORD:
+            r.pid = readPageId(in);
+            r.type = in.readInt();
+            if (r.type != UPDATE_RECORD && r.type != DELTA_RECORD)
+                throw new IOException("unknown compressed record type " + r.type + " at " + lsn);
+            int length = in.readInt();
+            byte[] packed = new byte[in.readInt()];
+            in.readFully(packed);
+            readUpdate(new DataInputStream(new ByteArrayInputStream(decompress(packed, length, lsn))), r);
+            break;
+        case CHECKPOINT_RECORD:
+            r.transactions = new HashMap<Long,Long>();
+            int numTransactions = in.readInt();
+            for (int i = 0; i < numTransactions; i++)
+                r.transactions.put(in.readLong(), in.readLong());
+            r.dirtyPages = new HashMap<PageId,Long>();
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++)
+                r.dirtyPages.put(readPageId(in), in.readLong());
+            break;
+        default:
+            throw new IOException("unknown record type " + r.type + " at " + lsn);
+        }
+        if (in.readLong() != lsn)
+            throw new IOException("corrupt log record at " + lsn);
+        return r;
+    }
+
+    /** Counts the bytes read through it, to know where each record starts. */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
         }
-        return newPage;
 
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +816,120 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: only the log is locked while the record is written, and
+        the dirty pages are written back in the background afterwards. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Map<PageId,Long> dirtyPages;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            // 页的recLSN在日志锁下设置，所以此前记录的更新都在表里
+            dirtyPages = Database.getBufferPool().getDirtyPageTable();
+            long startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(startCpOffset);
+            currentOffset = buffer.position();
+
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated; it must be on disk before the
+            // segments before the CP can be deleted
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.getChannel().force(true);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        // 脏页慢慢写回，写完后下一个检查点就能截掉更多日志
+        Database.getBufferPool().getPageWriter().writeBack(dirtyPages.keySet());
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        consumption.  Only whole segments before the oldest record still
+        needed, by an active transaction or by a dirty page, are deleted,
+        so appending goes on meanwhile.  */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (this) {
+            preAppend();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+            buffer.writeOut();
+
+            minLogRecord = cpLoc;
+            DataInputStream in = readAt(cpLoc);
+            int cpType = in.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = in.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = in.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = in.readLong();
+                long firstLogRecord = in.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(in);
+                long recLSN = in.readLong();
+                if (recLSN < minLogRecord)
+                    minLogRecord = recLSN;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can truncate everything before minLogRecord
+        int deleted = segments.truncateBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + ", DELETED " + deleted + " SEGMENTS");
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return a stream of the log records from the given LSN on.  The
+        caller must have written out the log buffer.
+    */
+    DataInputStream readAt(long lsn) {
+        return new DataInputStream(new BufferedInputStream(segments.inputStream(lsn)));
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the number of segment files the log is stored in */
+    public int getNumSegments() {
+        return segments.numSegments();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,6 +937,13 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The update records of the transaction are undone newest first,
+        starting from the image each page had when it was last logged.
+        The restored pages are logged as updates of the transaction and
+        written to disk (see {@link BufferPool#restorePage}); changes the
+        transaction made since a page was last logged are left to the
+        BufferPool to throw away.
 
         @param tid The transaction to rollback
     */
@@ -466,11 +952,74 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                ArrayList<Long> updates = tidToUpdates.get(tid.getId());
+                if (updates == null || updates.isEmpty())
+                    return;
+                buffer.writeOut();
+                BufferPool bp = Database.getBufferPool();
+                // 补偿记录会追加到updates，所以先撤销完再写回
+                for (Map.Entry<PageId,byte[]> e : undoImages(updates).entrySet())
+                    bp.restorePage(tid, rebuildPage(e.getKey(), e.getValue()));
             }
         }
     }
 
+    /** Roll back a transaction whose commit or abort record could not be
+        written, so that no other transaction sees its changes.  While the
+        log works, this is an ordinary abort.  Once the log has stopped
+        (see {@link #force}), the updates are undone in the buffer pool
+        only: the restored pages are neither logged nor written, and stay
+        in the pool in place of the copies on disk, which recovery sets
+        right when the database is restarted.
+
+        @param tid The transaction to rollback
+    */
+    public void rollbackFailed(TransactionId tid) throws IOException {
+        if (failure == null) {
+            try {
+                logAbort(tid);
+                return;
+            } catch (IOException e) {
+                if (failure == null)
+                    throw e;
+            }
+        }
+        BufferPool bp = Database.getBufferPool();
+        bp.undoRowChanges(tid, false);
+        synchronized (bp) {
+            synchronized (this) {
+                ArrayList<Long> updates = tidToUpdates.remove(tid.getId());
+                tidToFirstLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
+                if (updates == null || updates.isEmpty())
+                    return;
+                buffer.writeOut(); //只写出不刷盘，以便读回更新记录
+                for (Map.Entry<PageId,byte[]> e : undoImages(updates).entrySet()) {
+                    //行锁模式下堆页已由undoRowChanges逐个元组撤销
+                    if (bp.isRowLocking() && e.getKey() instanceof HeapPageId)
+                        continue;
+                    bp.installRolledBack(rebuildPage(e.getKey(), e.getValue()));
+                }
+            }
+        }
+    }
+
+    /** @return the image each page had before the given update records,
+        undoing them newest first from the page's last logged image */
+    private LinkedHashMap<PageId,byte[]> undoImages(ArrayList<Long> updates) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        LinkedHashMap<PageId,byte[]> images = new LinkedHashMap<PageId,byte[]>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            long lsn = updates.get(i);
+            Record r = readRecord(readAt(lsn), lsn);
+            byte[] data = images.get(r.pid);
+            if (data == null)
+                data = bp.getLoggedImage(r.pid).getPageData();
+            images.put(r.pid, r.undo(data));
+        }
+        return images;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -479,6 +1028,8 @@ public class LogFile {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            segments.close();
+            setCompression(0);
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +1039,369 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery makes three passes over the log (ARIES):
+        <ul>
+        <li> Analysis reads the records from the oldest one the last
+        checkpoint still needs, and finds the transactions that have
+        neither committed nor aborted (the losers), and where the log
+        ends; a record torn by the crash is cut off.
+        <li> Redo repeats history: every update, including those of
+        losers, is replayed on the pages that may not have it on disk,
+        that is those in the checkpoint's dirty page table or updated
+        after the checkpoint.  The updates are split by page among
+        simpledb.recoveryThreads workers, as pages are independent here.
+        <li> Undo rolls back the updates of the losers, newest first,
+        logs the restored pages and an ABORT record for each loser.
+        </ul>
+        The recovered pages are then written out and a checkpoint is
+        taken, so the next recovery starts from here.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                long cpLoc = NO_CHECKPOINT_ID;
+                if (raf.length() >= LONG_SIZE) {
+                    raf.seek(0);
+                    cpLoc = raf.readLong();
+                } else {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+
+                // analysis
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                long analysisStart = segments.start();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    Record cp = readRecord(readAt(cpLoc), cpLoc);
+                    if (cp.type != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    dirtyPages = cp.dirtyPages;
+                    analysisStart = cpLoc;
+                    for (long first : cp.transactions.values())
+                        analysisStart = Math.min(analysisStart, first);
+                    for (long recLSN : dirtyPages.values())
+                        analysisStart = Math.min(analysisStart, recLSN);
+                } else if (analysisStart != 0) {
+                    throw new IOException("log starts at " + analysisStart + " but has no checkpoint");
+                }
+
+                LinkedHashMap<Long,ArrayList<Long>> losers = new LinkedHashMap<Long,ArrayList<Long>>();
+                long end = segments.end();
+                CountingInputStream counter = new CountingInputStream(
+                        new BufferedInputStream(segments.inputStream(analysisStart)));
+                DataInputStream in = new DataInputStream(counter);
+                long pos = analysisStart;
+                while (pos < end) {
+                    Record r;
+                    try {
+                        r = readRecord(in, pos);
+                    } catch (IOException e) {
+                        Debug.log("RECOVERY: LOG ENDS WITH A TORN RECORD AT " + pos);
+                        break;
+                    }
+                    pos = analysisStart + counter.count;
+                    if (r.type == COMMIT_RECORD || r.type == ABORT_RECORD) {
+                        losers.remove(r.tid);
+                    } else if (r.type == BEGIN_RECORD || r.isUpdate()) {
+                        ArrayList<Long> updates = losers.get(r.tid);
+                        if (updates == null) {
+                            updates = new ArrayList<Long>();
+                            losers.put(r.tid, updates);
+                        }
+                        if (r.isUpdate())
+                            updates.add(r.lsn);
+                    }
+                }
+                if (pos < end)
+                    segments.truncateAfter(pos);
+                currentOffset = pos;
+                forcedOffset = pos;
+                buffer.reset(pos);
+
+                // redo
+                long redoStart = cpLoc == NO_CHECKPOINT_ID ? analysisStart : cpLoc;
+                for (long recLSN : dirtyPages.values())
+                    redoStart = Math.min(redoStart, recLSN);
+                HashMap<PageId,byte[]> images = redo(redoStart, pos, cpLoc, dirtyPages);
+
+                // undo
+                ArrayList<Long> undo = new ArrayList<Long>();
+                for (ArrayList<Long> updates : losers.values())
+                    undo.addAll(updates);
+                Collections.sort(undo, Collections.reverseOrder());
+                HashMap<PageId,byte[]> redone = new HashMap<PageId,byte[]>();
+                HashMap<PageId,Long> undoneBy = new HashMap<PageId,Long>();
+                for (long undoLSN : undo) {
+                    Record r = readRecord(readAt(undoLSN), undoLSN);
+                    byte[] data = image(images, r.pid);
+                    if (!redone.containsKey(r.pid)) {
+                        redone.put(r.pid, data);
+                        undoneBy.put(r.pid, r.tid);
+                    }
+                    images.put(r.pid, r.undo(data));
+                }
+                for (Map.Entry<PageId,Long> e : undoneBy.entrySet()) {
+                    PageId pid = e.getKey();
+                    logWrite(new TransactionId(e.getValue()),
+                            rebuildPage(pid, redone.get(pid)), rebuildPage(pid, images.get(pid)));
+                }
+                for (long tid : losers.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = buffer.position();
+                }
+                force();
+                tidToUpdates.clear();
+                tidToLogBytes.clear();
+
+                BufferPool bp = Database.getBufferPool();
+                for (Map.Entry<PageId,byte[]> e : images.entrySet()) {
+                    PageId pid = e.getKey();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(rebuildPage(pid, e.getValue()));
+                    bp.discardPage(pid);
+                }
+                Debug.log("RECOVERY: REDID " + images.size() + " PAGES, ROLLED BACK " + losers.size() + " TRANSACTIONS");
+
+                logCheckpoint();
             }
          }
     }
 
+    /** Repeat history from redoStart up to end, skipping the updates
+        before the checkpoint that the dirty page table says are on disk.
+        Pages are independent during redo, so the updates are split by
+        page among the redo workers, each of which replays the updates of
+        its pages in log order.
+
+        @return the redone images of the pages
+    */
+    private HashMap<PageId,byte[]> redo(long redoStart, long end, long cpLoc,
+                                        HashMap<PageId,Long> dirtyPages) throws IOException {
+        long begin = System.nanoTime();
+        int threads = recoveryThreads;
+        RedoWorker[] workers = new RedoWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new RedoWorker();
+            if (threads > 1)
+                workers[i].start(i);
+        }
+        long replayed = 0;
+        try {
+            CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(segments.inputStream(redoStart)));
+            DataInputStream in = new DataInputStream(counter);
+            long lsn = redoStart;
+            while (lsn < end) {
+                Record r = readRecord(in, lsn);
+                lsn = redoStart + counter.count;
+                if (!r.isUpdate())
+                    continue;
+                if (r.lsn < cpLoc) {
+                    // 检查点之前的更新，只有脏页表里的页从recLSN起可能不在磁盘上
+                    Long recLSN = dirtyPages.get(r.pid);
+                    if (recLSN == null || r.lsn < recLSN)
+                        continue;
+                }
+                replayed++;
+                RedoWorker worker = workers[(r.pid.hashCode() & Integer.MAX_VALUE) % threads];
+                if (threads > 1)
+                    worker.put(r);
+                else
+                    worker.apply(r);
+            }
+        } finally {
+            if (threads > 1) {
+                for (RedoWorker worker : workers)
+                    worker.finish();
+            }
+        }
+        HashMap<PageId,byte[]> images = new HashMap<PageId,byte[]>();
+        for (RedoWorker worker : workers) {
+            worker.check();
+            images.putAll(worker.images);
+        }
+        redoRecords = replayed;
+        redoNanos = System.nanoTime() - begin;
+        Debug.log("RECOVERY: REDID " + replayed + " RECORDS WITH " + threads + " THREADS, "
+                + (long) getRedoRecordsPerSecond() + " RECORDS/S");
+        return images;
+    }
+
+    /** Replays the updates of its share of the pages during redo, in the
+        order they are handed to it. */
+    private class RedoWorker implements Runnable {
+        final HashMap<PageId,byte[]> images = new HashMap<PageId,byte[]>();
+        private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(1024);
+        private Thread thread = null;
+        private volatile Throwable error = null;
+
+        void start(int n) {
+            thread = new Thread(this, "simpledb-redo-" + n);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void apply(Record r) throws IOException {
+            images.put(r.pid, r.redo(image(images, r.pid)));
+        }
+
+        void put(Record r) throws IOException {
+            check();
+            try {
+                queue.put(r);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Record r;
+                try {
+                    r = queue.take();
+                } catch (InterruptedException e) {
+                    continue; //要等到结束标记，否则读日志的线程会一直阻塞
+                }
+                if (r == END_OF_REDO)
+                    return;
+                if (error != null)
+                    continue;
+                try {
+                    apply(r);
+                } catch (Throwable t) {
+                    error = t;
+                }
+            }
+        }
+
+        /** Wait until the worker has replayed everything handed to it. */
+        void finish() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(END_OF_REDO);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void check() throws IOException {
+            if (error instanceof IOException)
+                throw (IOException) error;
+            if (error != null)
+                throw new IOException("redo failed", error);
+        }
+    }
+
+    /** @return the number of update records the last recovery replayed */
+    public long getNumRedoRecords() {
+        return redoRecords;
+    }
+
+    /** @return the rate at which the last recovery replayed update records */
+    public double getRedoRecordsPerSecond() {
+        long nanos = redoNanos;
+        return nanos == 0 ? 0 : redoRecords * 1e9 / nanos;
+    }
+
+    /** Set the number of threads the redo pass of recover() uses;
+        1 replays the log in the recovering thread. */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("recovery needs at least one thread");
+        recoveryThreads = threads;
+    }
+
+    /** @return the image of a page during recovery: the one being
+        recovered if there is one, the one on disk otherwise */
+    private byte[] image(HashMap<PageId,byte[]> images, PageId pid) {
+        byte[] data = images.get(pid);
+        if (data != null)
+            return data;
+        Page page = null;
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // 页还没有写到磁盘上
+        }
+        //从空页开始重做
+        return page != null ? page.getPageData() : new byte[BufferPool.getPageSize()];
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
+    /** Force the log to disk, and release the committers it makes durable.
+        <p>
+        A failed force is fatal: after an fsync error it is unknown which of
+        the buffered records reached disk, so from then on every append and
+        force of this log throws, and the committers still waiting fail.
+        No record can become durable after its transaction was told it
+        failed; whether such a transaction committed is decided by recovery
+        when the database is restarted.
+    */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        checkFailure();
+        try {
+            forceBuffer();
+        } catch (IOException e) {
+            failure = e;
+            synchronized (commitLock) {
+                commitLock.notifyAll();
+            }
+            throw e;
+        }
+        forcedOffset = currentOffset;
+        commitsForced(appendedCommits);
+    }
+
+    /** Write the log buffer out and fsync the segments it was written to. */
+    void forceBuffer() throws IOException {
+        buffer.writeOut();
+        segments.force();
+    }
+
+    /** Throw if a force of the log has failed.
+        @see #force
+    */
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("log unusable after a failed force", failure);
+    }
+
+    /** Force the log to disk up to and including the record with the
+        given LSN.  Does nothing if that record is already on disk, but
+        throws once the log has stopped, so that no page is written out
+        after that.
+
+        @param lsn The LSN of a record, as returned by logWrite
+    */
+    public synchronized void forceTo(long lsn) throws IOException {
+        checkFailure();
+        if (lsn >= forcedOffset)
+            force();
+    }
+
+    /** @return the number of writes of the log buffer to the log file */
+    public synchronized long getNumLogWrites() {
+        return buffer.getNumWrites();
     }
 
 }
@@ -0,0 +1,282 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of the log in fixed-size segment files.
+ * Positions in the log (LSNs) are continuous: segment n holds the bytes
+ * from n * segment size up to (n + 1) * segment size, in a file named after
+ * the log with the segment number appended, e.g. <tt>log.00000003</tt>.
+ * The segment index maps segment numbers to their open files.
+ * <p>
+ * Truncating the log only deletes the files of the segments that lie
+ * entirely before the oldest position still needed; records are never
+ * copied or moved.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Size of a segment file, set with the system property simpledb.logSegmentSize. */
+    static final long SEGMENT_SIZE = Long.getLong("simpledb.logSegmentSize", 16L << 20);
+
+    private final File base;
+    private final long segmentSize;
+
+    // 以下字段由this保护
+    private final TreeMap<Long, FileChannel> index = new TreeMap<Long, FileChannel>();
+    private final HashSet<Long> unforced = new HashSet<Long>();
+    private long end = 0;
+
+    /**
+     * Open the segments of the given log that exist on disk.
+     *
+     * @param base the log file the segments are named after
+     */
+    LogSegments(File base) throws IOException {
+        this(base, SEGMENT_SIZE);
+    }
+
+    LogSegments(File base, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        File[] files = this.base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long n = segmentNumber(f);
+                if (n >= 0)
+                    index.put(n, open(n));
+            }
+        }
+        if (!index.isEmpty()) {
+            long last = index.lastKey();
+            end = last * segmentSize + index.get(last).size();
+        }
+    }
+
+    /** @return the file of the given segment of the given log */
+    static File segmentFile(File base, long segment) {
+        return new File(base.getAbsolutePath() + String.format(".%08d", segment));
+    }
+
+    private long segmentNumber(File f) {
+        String prefix = base.getName() + ".";
+        String name = f.getName();
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 8)
+            return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return FileChannel.open(segmentFile(base, segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private FileChannel segment(long n) throws IOException {
+        FileChannel ch = index.get(n);
+        if (ch == null) {
+            ch = open(n);
+            index.put(n, ch);
+        }
+        return ch;
+    }
+
+    /** @return the size of a segment */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the position after the last byte written */
+    synchronized long end() {
+        return end;
+    }
+
+    /** @return the first position still held by a segment, or end() if none is */
+    synchronized long start() {
+        return index.isEmpty() ? end : index.firstKey() * segmentSize;
+    }
+
+    /** @return the number of segment files */
+    synchronized int numSegments() {
+        return index.size();
+    }
+
+    /**
+     * Write the remaining bytes of the given buffers at the given position,
+     * splitting them over segments where needed.
+     */
+    synchronized void write(ByteBuffer[] bufs, long position) throws IOException {
+        long n = 0;
+        for (ByteBuffer b : bufs)
+            n += b.remaining();
+        long seg = position / segmentSize;
+        if ((position + n - 1) / segmentSize == seg) {
+            //常见情况：整批落在一个段里，一次聚集写
+            FileChannel ch = segment(seg);
+            ch.position(position - seg * segmentSize);
+            ByteBuffer last = bufs[bufs.length - 1];
+            while (last.hasRemaining())
+                ch.write(bufs);
+            unforced.add(seg);
+        } else {
+            long pos = position;
+            for (ByteBuffer b : bufs) {
+                while (b.hasRemaining()) {
+                    seg = pos / segmentSize;
+                    long room = (seg + 1) * segmentSize - pos;
+                    ByteBuffer part = b.duplicate();
+                    if (part.remaining() > room)
+                        part.limit(part.position() + (int) room);
+                    int len = part.remaining();
+                    FileChannel ch = segment(seg);
+                    long off = pos - seg * segmentSize;
+                    while (part.hasRemaining())
+                        off += ch.write(part, off);
+                    unforced.add(seg);
+                    b.position(b.position() + len);
+                    pos += len;
+                }
+            }
+        }
+        end = Math.max(end, position + n);
+    }
+
+    /** Force every segment written since the last force to disk. */
+    synchronized void force() throws IOException {
+        for (Long seg : unforced) {
+            FileChannel ch = index.get(seg);
+            if (ch != null)
+                ch.force(true);
+        }
+        unforced.clear();
+    }
+
+    /**
+     * Read bytes at the given position into dst, stopping at the end of the
+     * log or of a segment.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    synchronized int read(long position, ByteBuffer dst) throws IOException {
+        if (position >= end)
+            return -1;
+        long seg = position / segmentSize;
+        FileChannel ch = index.get(seg);
+        if (ch == null)
+            throw new IOException("log position " + position + " was truncated");
+        long limit = Math.min(end, (seg + 1) * segmentSize) - position;
+        if (dst.remaining() > limit)
+            dst.limit(dst.position() + (int) limit);
+        int n = ch.read(dst, position - seg * segmentSize);
+        return n < 0 ? -1 : n;
+    }
+
+    /** @return a stream of the bytes of the log from the given position on */
+    InputStream inputStream(final long position) {
+        return new InputStream() {
+            private long pos = position;
+            private final ByteBuffer one = ByteBuffer.allocate(1);
+
+            @Override
+            public int read() throws IOException {
+                one.clear();
+                int n = LogSegments.this.read(pos, one);
+                if (n <= 0)
+                    return -1;
+                pos++;
+                return one.get(0) & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int n = LogSegments.this.read(pos, ByteBuffer.wrap(b, off, len));
+                if (n > 0)
+                    pos += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Delete the segments that only hold bytes before the given position.
+     * Appending to later segments goes on meanwhile.
+     *
+     * @return the number of segments deleted
+     */
+    int truncateBefore(long position) throws IOException {
+        ArrayList<Long> old = new ArrayList<Long>();
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            long keep = position / segmentSize; //这个段还有需要的记录
+            for (Iterator<Map.Entry<Long, FileChannel>> it = index.headMap(keep).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, FileChannel> e = it.next();
+                old.add(e.getKey());
+                channels.add(e.getValue());
+                unforced.remove(e.getKey());
+                it.remove();
+            }
+        }
+        //删除文件时不持有锁
+        for (int i = 0; i < old.size(); i++) {
+            channels.get(i).close();
+            segmentFile(base, old.get(i)).delete();
+        }
+        return old.size();
+    }
+
+    /**
+     * Drop everything after the given position, such as a record torn by a
+     * crash, so that appending resumes there.
+     */
+    synchronized void truncateAfter(long position) throws IOException {
+        if (position >= end)
+            return;
+        long last = position / segmentSize;
+        for (Iterator<Map.Entry<Long, FileChannel>> it = index.tailMap(last, false).entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, FileChannel> e = it.next();
+            e.getValue().close();
+            segmentFile(base, e.getKey()).delete();
+            unforced.remove(e.getKey());
+            it.remove();
+        }
+        FileChannel ch = index.get(last);
+        if (ch != null) {
+            ch.truncate(position - last * segmentSize);
+            unforced.add(last);
+        }
+        end = position;
+    }
+
+    /** Delete all segments, and start the log again at the given position. */
+    synchronized void reset(long position) throws IOException {
+        for (Map.Entry<Long, FileChannel> e : index.entrySet()) {
+            e.getValue().close();
+            segmentFile(base, e.getKey()).delete();
+        }
+        index.clear();
+        unforced.clear();
+        end = position;
+    }
+
+    /** Close all segment files. */
+    synchronized void close() throws IOException {
+        for (FileChannel ch : index.values())
+            ch.close();
+        index.clear();
+        unforced.clear();
+    }
+}
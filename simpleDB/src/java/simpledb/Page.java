@@ -7,8 +7,8 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, the DbFile holding a page must be able to rebuild
+ * it from its bytes through {@link PageDecoder}.
  */
 public interface Page {
 
@@ -33,6 +33,18 @@ public interface Page {
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+  /**
+   * Return the LSN of the last log record written for this page, or -1 if
+   * none has been. The BufferPool forces the log up to this LSN before it
+   * writes the page out.
+   */
+    public long getLSN();
+
+  /**
+   * Record the LSN of the log record just written for this page.
+   */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -47,13 +59,14 @@ public interface Page {
     public byte[] getPageData();
 
     /** Provide a representation of this page before any modifications were made
-        to it.  Used by recovery.
+        to it since its last update was logged.  Used by recovery.
     */
     //恢复功能
     public Page getBeforeImage();
 
     /*
-     * a transaction that wrote this page just committed it.
+     * the page was just logged (when it is written out, or when the
+     * transaction that wrote it commits).
      * copy current content to the before image.
      */
     public void setBeforeImage();
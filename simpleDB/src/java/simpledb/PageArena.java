@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PageArena is an off-heap second tier of the BufferPool. It is a set of
+ * fixed-size frames carved out of direct ByteBuffers, each holding the raw
+ * bytes of a clean page that was evicted from the pool. A miss in the pool
+ * looks here before going to disk, so the pool can keep gigabytes of pages
+ * cached while only the hot ones live on the Java heap as Page objects.
+ * <p>
+ * A page is in at most one of the two tiers: it is moved into the arena when
+ * the pool evicts it, and taken out again when the pool reads it back. When
+ * the arena is full, the page that was put in first is dropped. Frames are
+ * allocated in chunks as the arena fills up; direct memory is limited by the
+ * JVM option -XX:MaxDirectMemorySize.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+
+    /** Frames allocated at a time, so a large arena is only paid for as it fills. */
+    private static final int CHUNK_FRAMES = 256;
+
+    private final int capacity;
+    private final int frameSize;
+
+    // 以下字段由this保护
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    // 按放入顺序排列，满了先挤掉最早放入的页
+    private final LinkedHashMap<PageId, Integer> index = new LinkedHashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+    private int allocated = 0;
+
+    /**
+     * @param capacity the number of frames in the arena
+     * @param frameSize the size of a frame; larger pages are not kept
+     */
+    public PageArena(int capacity, int frameSize) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("an arena needs at least one frame");
+        this.capacity = capacity;
+        this.frameSize = frameSize;
+    }
+
+    /** @return the number of frames in the arena */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of pages currently kept in the arena */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Keep a copy of the given page image, replacing any previous image of
+     * the same page.
+     *
+     * @return false if the image does not fit in a frame
+     */
+    public synchronized boolean put(PageId pid, byte[] data) {
+        if (data.length > frameSize)
+            return false;
+        Integer slot = index.remove(pid);
+        if (slot == null)
+            slot = freeSlot();
+        if (slot == null)
+            return false;
+        frame(slot).put(data);
+        index.put(pid, slot);
+        return true;
+    }
+
+    /**
+     * Take the image of the given page out of the arena and build the page
+     * from it with decoder, which parses it straight out of off-heap memory.
+     *
+     * @return the page, or null if the arena does not hold it
+     */
+    public Page take(PageId pid, PageDecoder decoder) throws IOException {
+        int slot;
+        ByteBuffer data;
+        synchronized (this) {
+            Integer s = index.remove(pid);
+            if (s == null)
+                return null;
+            slot = s;
+            data = frame(slot);
+        }
+        //解析时不持有锁，帧在放回空闲链表之前不会被重用
+        try {
+            return decoder.decodePage(pid, data);
+        } finally {
+            synchronized (this) {
+                free.push(slot);
+            }
+        }
+    }
+
+    /** Drop the image of the given page, if the arena holds one. */
+    public synchronized void remove(PageId pid) {
+        Integer slot = index.remove(pid);
+        if (slot != null)
+            free.push(slot);
+    }
+
+    private Integer freeSlot() {
+        if (!free.isEmpty())
+            return free.pop();
+        if (allocated < capacity) {
+            if (allocated % CHUNK_FRAMES == 0) {
+                int frames = Math.min(CHUNK_FRAMES, capacity - allocated);
+                chunks.add(ByteBuffer.allocateDirect(frames * frameSize));
+            }
+            return allocated++;
+        }
+        Iterator<Integer> eldest = index.values().iterator();
+        if (!eldest.hasNext())
+            return null; //所有帧都正在被take解析
+        Integer slot = eldest.next();
+        eldest.remove();
+        return slot;
+    }
+
+    private ByteBuffer frame(int slot) {
+        ByteBuffer chunk = chunks.get(slot / CHUNK_FRAMES).duplicate();
+        int offset = (slot % CHUNK_FRAMES) * frameSize;
+        chunk.limit(offset + frameSize);
+        chunk.position(offset);
+        return chunk.slice();
+    }
+}
@@ -0,0 +1,18 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by DbFiles whose pages can be rebuilt from their on-disk
+ * bytes. The BufferPool only keeps evicted pages of such files in its
+ * off-heap {@link PageArena}.
+ */
+public interface PageDecoder {
+    /**
+     * Build the page with the given id from its on-disk image.
+     *
+     * @param data the image of the page; it is only valid during the call
+     */
+    public Page decodePage(PageId pid, ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the change a transaction made to a page, as the byte ranges
+ * that differ between the page's before and after images. The log stores a
+ * delta instead of two full images when it is smaller, so inserting,
+ * deleting or overwriting a tuple logs a few bytes of header and the bytes
+ * of the tuple's slot rather than the whole page twice.
+ * <p>
+ * {@link #redo} and {@link #undo} replay the delta on an image of the page.
+ * Undo flips back only the bits the delta changed, so with row locking it
+ * leaves alone the changes other transactions made since to other slots
+ * sharing a header byte.
+ */
+public class PageDelta {
+
+    /** Ranges closer than this are merged, since each range costs 8 bytes of header. */
+    private static final int MERGE_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two images of a page.
+     *
+     * @return the delta, or null if the images do not have the same length
+     */
+    public static PageDelta diff(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length)
+            return null;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < newData.length) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; //不相同区间的结尾（不含）
+            for (int j = end; j < newData.length && j - end < MERGE_GAP; j++) {
+                if (oldData[j] != newData[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(oldData, start, end);
+            after[r] = Arrays.copyOfRange(newData, start, end);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+
+    /** @return the number of changed byte ranges */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes {@link #write} produces */
+    public int encodedSize() {
+        int size = 4;
+        for (byte[] b : after)
+            size += 8 + 2 * b.length;
+        return size;
+    }
+
+    /** Apply the after bytes of the delta to a copy of the given image. */
+    public byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /**
+     * Flip back the bits the delta changed in a copy of the given image,
+     * which must hold the change.
+     */
+    public byte[] undo(byte[] data) {
+        byte[] result = data.clone();
+        for (int r = 0; r < offsets.length; r++) {
+            for (int i = 0; i < before[r].length; i++)
+                result[offsets[r] + i] ^= before[r][i] ^ after[r][i];
+        }
+        return result;
+    }
+
+    private byte[] apply(byte[] data, byte[][] bytes) {
+        byte[] result = data.clone();
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(bytes[r], 0, result, offsets[r], bytes[r].length);
+        return result;
+    }
+
+    /**
+     * Write the delta: the number of ranges, then per range the offset, the
+     * length, the before bytes and the after bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("corrupt page delta");
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (offsets[r] < 0 || len < 0)
+                throw new IOException("corrupt page delta");
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
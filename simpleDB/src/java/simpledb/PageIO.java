@@ -0,0 +1,412 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageIO is the page I/O layer shared by the table files. Every DbFile owns
+ * a {@link Handle} on its file, which keeps a FileChannel open across calls
+ * and does positional reads and writes on it, so that concurrent readers and
+ * writers never have to seek or reopen the file.
+ * <p>
+ * To bound the number of open file descriptors, PageIO keeps at most
+ * simpledb.maxOpenFiles channels open (256 by default) and closes the
+ * idle ones that were opened first beyond that; a handle whose channel was
+ * closed reopens it on its next use. Only opening a channel takes the
+ * registry lock, so I/O on open files never contends on it.
+ * <p>
+ * A handle can also serve reads from a read-only memory mapping of the file,
+ * see {@link Handle#view(long, int)}. Writes always go through the channel;
+ * they share the OS page cache with the mapping, so mapped reads see them,
+ * and the file is mapped again when it grows past the mapping.
+ * <p>
+ * Each handle records how long its reads and writes take in a latency
+ * histogram, see {@link IOStats} and {@link #report()}.
+ *
+ * @Threadsafe
+ */
+public class PageIO {
+
+    /** Most channels kept open at the same time. */
+    public static final int MAX_OPEN = Math.max(1, Integer.getInteger("simpledb.maxOpenFiles", 256));
+
+    /** Whether table files read their pages through a memory mapping by default. */
+    public static final boolean MAP_DEFAULT = Boolean.getBoolean("simpledb.mmap");
+
+    // 按打开顺序排列的已打开句柄，由PageIO.class保护
+    private static final LinkedHashMap<Handle, Boolean> openHandles = new LinkedHashMap<Handle, Boolean>();
+    // 所有还在使用的句柄，只用于统计报告
+    private static final Map<Handle, Boolean> handles = Collections.synchronizedMap(new WeakHashMap<Handle, Boolean>());
+
+    private PageIO() {}
+
+    /** Return a new handle on the given file; the file is opened on first use. */
+    public static Handle open(File file) {
+        Handle h = new Handle(file);
+        handles.put(h, Boolean.TRUE);
+        return h;
+    }
+
+    private static void opened(Handle h) {
+        ArrayList<Handle> idle = new ArrayList<Handle>();
+        synchronized (PageIO.class) {
+            openHandles.put(h, Boolean.TRUE);
+            h.registered = true;
+            int excess = openHandles.size() - MAX_OPEN;
+            Iterator<Handle> it = openHandles.keySet().iterator();
+            while (excess > 0 && it.hasNext()) {
+                Handle eldest = it.next();
+                if (eldest != h && !eldest.inUse()) {
+                    it.remove();
+                    eldest.registered = false;
+                    idle.add(eldest);
+                    excess--;
+                }
+            }
+        }
+        //关闭文件放在PageIO的锁外面做
+        for (Handle eldest : idle)
+            eldest.closeIfIdle();
+    }
+
+    private static synchronized void forget(Handle h) {
+        openHandles.remove(h);
+        h.registered = false;
+    }
+
+    /** @return the number of channels currently open */
+    public static synchronized int getNumOpen() {
+        return openHandles.size();
+    }
+
+    /** @return one line of read and write latency statistics per file */
+    public static String report() {
+        ArrayList<Handle> all;
+        synchronized (handles) {
+            all = new ArrayList<Handle>(handles.keySet());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Handle h : all) {
+            if (h.reads.getCount() == 0 && h.writes.getCount() == 0)
+                continue;
+            sb.append(h.file.getPath()).append(": reads ").append(h.reads)
+                    .append(", writes ").append(h.writes).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** @return an InputStream reading the remaining bytes of buf, without copying them */
+    public static InputStream inputStream(final ByteBuffer buf) {
+        return new InputStream() {
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                if (!buf.hasRemaining())
+                    return -1;
+                len = Math.min(len, buf.remaining());
+                buf.get(b, off, len);
+                return len;
+            }
+
+            public long skip(long n) {
+                int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+                buf.position(buf.position() + k);
+                return k;
+            }
+
+            public int available() {
+                return buf.remaining();
+            }
+        };
+    }
+
+    /**
+     * An open (or reopenable) file used for page I/O.
+     */
+    public static class Handle {
+        private final File file;
+        private FileChannel channel; // protected by this
+        private int users = 0; // protected by this
+        // 是否在openHandles中，由PageIO.class保护；不在其中的通道在空闲时关闭
+        private volatile boolean registered = false;
+        // 只读映射，文件变长后整体替换
+        private volatile MappedByteBuffer mapped;
+        private final IOStats reads = new IOStats();
+        private final IOStats writes = new IOStats();
+
+        private Handle(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /** Latency statistics of the reads done through this handle */
+        public IOStats getReadStats() {
+            return reads;
+        }
+
+        /** Latency statistics of the writes done through this handle */
+        public IOStats getWriteStats() {
+            return writes;
+        }
+
+        private FileChannel acquire(boolean create) throws IOException {
+            FileChannel ch;
+            boolean opened = false;
+            synchronized (this) {
+                if (channel == null || !channel.isOpen()) {
+                    channel = openChannel(create);
+                    opened = true;
+                } else if (!registered) {
+                    opened = true; //刚被换出但还没关闭，重新登记
+                }
+                users++;
+                ch = channel;
+            }
+            if (opened)
+                opened(this);
+            return ch;
+        }
+
+        private FileChannel openChannel(boolean create) throws IOException {
+            try {
+                if (create)
+                    return FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (AccessDeniedException e) {
+                //只读文件仍然可以读
+                return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        }
+
+        private synchronized void release() {
+            users--;
+            if (!registered)
+                closeIfIdle(); //使用期间被换出或关闭
+        }
+
+        private synchronized boolean inUse() {
+            return users > 0;
+        }
+
+        /** @return true if the channel of this handle is open */
+        synchronized boolean isOpen() {
+            return channel != null && channel.isOpen();
+        }
+
+        private synchronized void closeIfIdle() {
+            if (users > 0 || channel == null || registered)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do, the channel is gone either way
+            }
+            channel = null;
+        }
+
+        /** Close the channel and drop the mapping; both come back if the handle is used again. */
+        public void close() {
+            forget(this);
+            mapped = null;
+            closeIfIdle();
+        }
+
+        /**
+         * Return a read-only view of length bytes at the given offset of a
+         * memory mapping of the file. The file is mapped on first use, and
+         * mapped again if the range is past the end of the current mapping
+         * but the file has grown to cover it.
+         *
+         * @return the view, or null if the range is past the end of the file
+         */
+        public ByteBuffer view(long offset, int length) throws IOException {
+            long start = System.nanoTime();
+            MappedByteBuffer m = mapped;
+            if (m == null || offset + length > m.capacity()) {
+                m = remap(offset + length);
+                if (m == null)
+                    return null;
+            }
+            ByteBuffer v = m.duplicate();
+            v.limit((int) offset + length);
+            v.position((int) offset);
+            reads.record(System.nanoTime() - start);
+            return v.slice();
+        }
+
+        private MappedByteBuffer remap(long needed) throws IOException {
+            long size = file.length();
+            if (size < needed)
+                return null;
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be mapped");
+            //映射时不持有本句柄的锁，映射在通道关闭后依然有效
+            FileChannel ch = acquire(false);
+            MappedByteBuffer m;
+            try {
+                m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                release();
+            }
+            synchronized (this) {
+                if (mapped == null || mapped.capacity() < m.capacity())
+                    mapped = m;
+                return mapped;
+            }
+        }
+
+        /**
+         * Read from the given file offset until dst is full or the end of
+         * the file is reached.
+         *
+         * @return the number of bytes read, or -1 if offset is at or past the
+         *   end of the file
+         */
+        public int read(long offset, ByteBuffer dst) throws IOException {
+            FileChannel ch = acquire(false);
+            long start = System.nanoTime();
+            int total = 0;
+            boolean eof = false;
+            try {
+                while (dst.hasRemaining()) {
+                    int n = ch.read(dst, offset + total);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    total += n;
+                }
+            } finally {
+                release();
+                reads.record(System.nanoTime() - start);
+            }
+            return eof && total == 0 ? -1 : total;
+        }
+
+        /**
+         * Read count consecutive pages of pageSize bytes starting at the
+         * given offset with a single request. Pages past the end of the file
+         * are left out.
+         *
+         * @return the contents of the pages that could be read in full
+         */
+        public byte[][] readPages(long offset, int pageSize, int count) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(pageSize * count);
+            int n = read(offset, buf);
+            int pages = n < 0 ? 0 : n / pageSize;
+            byte[][] result = new byte[pages][];
+            byte[] all = buf.array();
+            for (int i = 0; i < pages; i++)
+                result[i] = Arrays.copyOfRange(all, i * pageSize, (i + 1) * pageSize);
+            return result;
+        }
+
+        /** Write all of src at the given file offset, creating the file if needed. */
+        public void write(long offset, ByteBuffer src) throws IOException {
+            FileChannel ch = acquire(true);
+            long start = System.nanoTime();
+            try {
+                long pos = offset;
+                while (src.hasRemaining())
+                    pos += ch.write(src, pos);
+            } finally {
+                release();
+                writes.record(System.nanoTime() - start);
+            }
+        }
+
+        /** Write data at the given file offset, creating the file if needed. */
+        public void write(long offset, byte[] data) throws IOException {
+            write(offset, ByteBuffer.wrap(data));
+        }
+
+        /** Append data at the end of the file. Callers must serialize appends. */
+        public void append(byte[] data) throws IOException {
+            write(file.length(), data);
+        }
+    }
+
+    /**
+     * A latency histogram with power-of-two buckets in microseconds: bucket
+     * 0 counts operations under 1us, bucket i those under 2^i us, and the
+     * last bucket everything slower.
+     */
+    public static class IOStats {
+        public static final int BUCKETS = 24;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        IOStats() {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int b = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(b, BUCKETS - 1)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        /** @return the number of operations recorded */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** @return the average latency, in nanoseconds */
+        public long getAvgNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n;
+        }
+
+        /** @return the number of operations recorded in each bucket */
+        public long[] getBuckets() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                result[i] = buckets[i].sum();
+            return result;
+        }
+
+        /**
+         * @return an upper bound, in microseconds, of the latency below which
+         *   the given fraction (e.g. 0.99) of the operations completed
+         */
+        public long getPercentileMicros(double fraction) {
+            long[] b = getBuckets();
+            long total = 0;
+            for (long c : b)
+                total += c;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += b[i];
+                if (total > 0 && seen >= fraction * total)
+                    return 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        public String toString() {
+            return String.format("n=%d avg=%dus p50<=%dus p99<=%dus", getCount(),
+                    getAvgNanos() / 1000, getPercentileMicros(0.5), getPercentileMicros(0.99));
+        }
+    }
+}
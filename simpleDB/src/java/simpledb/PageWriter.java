@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageWriter writes dirty pages of a BufferPool back to disk in the
+ * background, a page at a time with a pause in between, so that the writes
+ * trickle out instead of stalling transactions. It has two sources of work:
+ * <ul>
+ * <li> A fuzzy checkpoint hands it the pages of its dirty page table: once
+ * they are on disk, the log before the checkpoint is no longer needed for
+ * redo. These are written first, in the order given.
+ * <li> When it has nothing queued, it keeps a fraction of the pool clean
+ * (see {@link BufferPool#CLEAN_FRACTION}), writing pages of transactions that
+ * have completed in page-number order, so that eviction finds clean victims
+ * instead of failing with "All pages are dirty". The pool wakes it up when
+ * it evicts a page.
+ * </ul>
+ * <p>
+ * The pause between two pages is set in microseconds with the system
+ * property simpledb.writerDelay (1000 by default). The writer thread runs at
+ * low priority, is started when there is work and exits once it has been
+ * idle for a second.
+ *
+ * @Threadsafe
+ */
+public class PageWriter {
+
+    static final long DELAY = Math.max(0, Long.getLong("simpledb.writerDelay", 1000));
+    private static final long IDLE_MS = 1000;
+
+    private final BufferPool bufferPool;
+
+    // 写页时加锁用的事务id，只有写线程使用
+    private final TransactionId writerTid = new TransactionId();
+
+    // 以下字段由this保护
+    private final LinkedHashSet<PageId> queue = new LinkedHashSet<PageId>();
+    private Thread thread = null;
+    private boolean woken = false;
+
+    private final LongAdder pagesWritten = new LongAdder();
+
+    public PageWriter(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /** Write the given pages back in the background, in the given order. */
+    public synchronized void writeBack(Collection<PageId> pids) {
+        queue.addAll(pids);
+        if (!queue.isEmpty())
+            start();
+    }
+
+    /** Check in the background whether the pool needs cleaning. */
+    public synchronized void wake() {
+        woken = true;
+        start();
+    }
+
+    private void start() {
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "simpledb-page-writer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); //只在空闲时写
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /** @return the number of pages waiting to be written back */
+    public synchronized int getNumQueued() {
+        return queue.size();
+    }
+
+    /** @return the number of pages the writer has written to disk */
+    public long getNumWritten() {
+        return pagesWritten.sum();
+    }
+
+    /** @return the next queued page, or null if there is none */
+    private synchronized PageId next() {
+        if (queue.isEmpty())
+            return null;
+        Iterator<PageId> it = queue.iterator();
+        PageId pid = it.next();
+        it.remove();
+        return pid;
+    }
+
+    /**
+     * Wait for work.
+     *
+     * @return false if none came within the idle time, or the thread was
+     *   interrupted, and the thread exits; the next writeBack or wake starts
+     *   another one
+     */
+    private synchronized boolean idle() {
+        if (Thread.interrupted()) {
+            thread = null;
+            return false;
+        }
+        if (queue.isEmpty() && !woken) {
+            try {
+                wait(IDLE_MS);
+            } catch (InterruptedException e) {
+                // 只在空闲时退出
+            }
+        }
+        if (queue.isEmpty() && !woken) {
+            thread = null;
+            return false;
+        }
+        woken = false;
+        return true;
+    }
+
+    private void work() {
+        do {
+            PageId pid;
+            while (!Thread.currentThread().isInterrupted() && (pid = next()) != null)
+                write(pid);
+            clean();
+        } while (idle());
+    }
+
+    /** Write pages of completed transactions until the pool is clean enough. */
+    private void clean() {
+        for (PageId pid : bufferPool.pagesToClean()) {
+            if (!bufferPool.needsCleaning() || Thread.currentThread().isInterrupted())
+                return;
+            write(pid);
+        }
+    }
+
+    private void write(PageId pid) {
+        try {
+            if (!bufferPool.writeBackPage(pid, writerTid))
+                return;
+            pagesWritten.increment();
+        } catch (IOException e) {
+            Debug.log(0, "page writer could not write %s: %s", pid, e);
+            return;
+        }
+        if (DELAY > 0) {
+            try {
+                Thread.sleep(DELAY / 1000, (int) (DELAY % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); //停止这一轮写出
+            }
+        }
+    }
+}
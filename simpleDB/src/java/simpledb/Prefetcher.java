@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefetcher reads pages into the BufferPool ahead of a sequential scan, on
+ * a background I/O executor, so that the pages are resident by the time the
+ * scan asks for them.
+ * <p>
+ * HeapFile scans prefetch the next pages of the file; the whole run is read
+ * from disk with a single request (see {@link HeapFile#stagePages(int, int)})
+ * and then handed to the pool page by page. B+ tree scans follow the sibling
+ * pointers of the leaves, one leaf after the other.
+ * <p>
+ * Each prefetched page is loaded through a placeholder frame exactly like a
+ * miss in {@link BufferPool#getPage}, so a scan that catches up with the
+ * prefetcher waits for the pending read instead of issuing a second one.
+ * Prefetching does not take locks: a page that is not cached is read in the
+ * state it has on disk, and the scan locks it as usual when it gets there.
+ * <p>
+ * The number of pages read ahead is set with the system property
+ * simpledb.prefetchPages (8 by default, 0 disables prefetching), and the
+ * executor size with simpledb.prefetchThreads (2 by default). A scan never
+ * reads ahead more than a quarter of the pool, so that the pages it is
+ * waiting for do not crowd out the one it is working on; pools of fewer
+ * than 4 pages do not prefetch at all.
+ *
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+    /** Number of pages a scan keeps read ahead of itself. */
+    public static final int WINDOW = Math.max(0, Integer.getInteger("simpledb.prefetchPages", 8));
+
+    private static final int THREADS = Math.max(1, Integer.getInteger("simpledb.prefetchThreads", 2));
+
+    // 所有缓冲池共用一个后台线程池，重置缓冲池时不会泄漏线程
+    private static ExecutorService executor;
+
+    private final BufferPool bufferPool;
+    private final int maxWindow;
+
+    /**
+     * @param bufferPool the pool pages are read into
+     * @param numPages the number of pages in the pool
+     */
+    public Prefetcher(BufferPool bufferPool, int numPages) {
+        this.bufferPool = bufferPool;
+        this.maxWindow = Math.min(WINDOW, numPages / 4);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-prefetch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return the number of pages a scan reading through the given ring
+     *   (null for none) should read ahead; a ring must not recycle pages
+     *   before the scan has reached them
+     */
+    public int window(BufferRing ring) {
+        return ring == null ? maxWindow : Math.min(maxWindow, ring.size() / 2);
+    }
+
+    /**
+     * Read count pages of the heap file, starting at page number first, into
+     * the pool in the background.
+     */
+    public void prefetchRange(final HeapFile file, final int first, final int count, final BufferRing ring) {
+        if (count <= 0)
+            return;
+        executor().execute(new Runnable() {
+            public void run() {
+                file.stagePages(first, count);
+                try {
+                    for (int i = 0; i < count; i++)
+                        load(file, new HeapPageId(file.getId(), first + i), ring);
+                } finally {
+                    file.unstagePages(first, count);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read up to count leaves of the B+ tree into the pool in the background,
+     * starting at the given leaf and following right sibling pointers, or
+     * left ones if forward is false.
+     */
+    public void prefetchLeaves(final BTreeFile file, final BTreePageId start, final int count,
+            final boolean forward, final BufferRing ring) {
+        if (count <= 0 || start == null)
+            return;
+        executor().execute(new Runnable() {
+            public void run() {
+                BTreePageId pid = start;
+                for (int i = 0; i < count && pid != null; i++) {
+                    Page page = load(file, pid, ring);
+                    if (!(page instanceof BTreeLeafPage))
+                        break;
+                    BTreeLeafPage leaf = (BTreeLeafPage) page;
+                    pid = forward ? leaf.getRightSiblingId() : leaf.getLeftSiblingId();
+                }
+            }
+        });
+    }
+
+    private Page load(DbFile file, PageId pid, BufferRing ring) {
+        try {
+            return bufferPool.prefetchPage(file, pid, ring);
+        } catch (RuntimeException e) {
+            //预读只是优化，失败了就交给扫描自己去读
+            Debug.log(1, "Prefetcher: reading %s failed: %s", pid, e);
+            return null;
+        }
+    }
+}
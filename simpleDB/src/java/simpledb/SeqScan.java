@@ -17,6 +17,7 @@ public class SeqScan implements OpIterator {
     private TransactionId tid;
     private String tableAlias;
     private DbFileIterator it; //SimpleDB每个运算符都实现 DbFileIterator接口
+    private Predicate pushed; //下推到堆文件中在原始字节上求值的谓词
     
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -81,6 +82,23 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Only return the tuples that satisfy pred. On heap files the predicate
+     * is evaluated on the page bytes, so rejected tuples are never decoded;
+     * on other files it is ignored, and the caller must still filter. Must
+     * be called while the scan is closed.
+     */
+    public void pushPredicate(Predicate pred) {
+        if (pred == pushed)
+            return;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            it.close();
+            it = ((HeapFile) file).iterator(tid, pred);
+            pushed = pred;
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException { //open就是打开迭代器   
 		it.open();
     }
@@ -44,23 +44,39 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
+            boolean committed = false;
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                //write commit / abort records
+                if (abort) {
+                    Database.getLogFile().logAbort(tid); //does rollback too
+                } else {
+                    BufferPool bp = Database.getBufferPool();
+                    if (bp.isStealNoForce())
+                        bp.logPages(tid); //NO FORCE：只记日志，提交时只刷日志
+                    else
+                        bp.flushPages(tid); //write all the dirty pages for this transaction out
+                    Database.getLogFile().logCommit(tid);
+                    committed = true;
+                }
             } catch (IOException e) {
-                e.printStackTrace();
-            }
+                //提交或中止记录没能写进日志：撤销事务的修改，不让其他事务看到
+                try {
+                    Database.getLogFile().rollbackFailed(tid);
+                } catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            } finally {
+                //无论成败都要释放锁
+                try {
+                    Database.getBufferPool().transactionComplete(tid, committed); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
 
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
+            }
         }
     }
 }
@@ -18,6 +18,11 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /** The id of a transaction read back from the log by recovery. */
+    TransactionId(long id) {
+        myid = id;
+    }
+
     public long getId() {
         return myid;
     }
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q (Johnson and Shasha).
+ * <p>
+ * A page read for the first time enters A1in, a FIFO queue holding about a
+ * quarter of the pool; hits there do not promote it. When it is evicted from
+ * A1in its id is remembered in the ghost queue A1out. Only a page that is
+ * read again while its id is still in A1out is considered hot and goes to
+ * Am, which is managed as an LRU list. A sequential scan therefore only ever
+ * churns A1in and leaves the hot pages in Am alone.
+ * <p>
+ * All queues are protected by this object's monitor, so unlike CLOCK a hit
+ * takes a short lock to move the page to the head of Am.
+ *
+ * @Threadsafe
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    // 三个队列均按从旧到新的顺序排列
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * @param numPages the capacity of the buffer pool; A1in holds a quarter
+     *   of it and A1out remembers half of it
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        maxIn = Math.max(1, numPages / 4);
+        maxOut = Math.max(1, numPages / 2);
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        //最近刚从A1in换出又被读入，说明是热页，直接进入Am
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        //A1in超过配额时优先从A1in换出，否则换出Am中最久未用的页
+        LinkedHashSet<PageId> first = a1in.size() > maxIn ? a1in : am;
+        LinkedHashSet<PageId> second = first == a1in ? am : a1in;
+        PageId victim = oldestEvictable(first, candidates);
+        if (victim == null)
+            victim = oldestEvictable(second, candidates);
+        return victim;
+    }
+
+    private static PageId oldestEvictable(LinkedHashSet<PageId> queue, Candidates candidates) {
+        for (PageId pid : queue) {
+            if (candidates.isEvictable(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    synchronized boolean isHot(PageId pid) {
+        return am.contains(pid);
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 20;
+
+    private HeapFile small, big;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two pages that will be hot, and a table twice as large as the pool
+        small = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 20000, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test for BufferPool.newScanRing(): only files that do not fit in
+     * the pool get a ring.
+     */
+    @Test public void ringOnlyForLargeFiles() {
+        assertNull(bp.newScanRing(small.numPages()));
+        assertNull(bp.newScanRing(POOL_PAGES));
+        BufferRing ring = bp.newScanRing(big.numPages());
+        assertNotNull(ring);
+        assertEquals(POOL_PAGES / 4, ring.size());
+    }
+
+    /**
+     * A full scan of a file larger than the pool recycles its own frames and
+     * leaves the pages that were cached before it alone.
+     */
+    @Test public void scanLeavesHotPagesCached() throws Exception {
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(20000, count);
+
+        long misses = bp.getNumMisses();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getNumMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
@@ -1,7 +1,15 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +101,103 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Replacing a table by id also frees its old name, and the id iterator
+     * lists the tables in the order they were added.
+     */
+    @Test public void replacedTableLeavesNoTrace() throws Exception {
+        String newName = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(new SkeletonFile(id1, Utility.getTupleDesc(3)), newName);
+        try {
+            Database.getCatalog().getTableId(nameThisTestRun);
+            Assert.fail("Should not find the replaced table by its old name");
+        } catch (NoSuchElementException e) {
+            // Expected to get here
+        }
+        assertEquals(Utility.getTupleDesc(3), Database.getCatalog().getTupleDesc(id1));
+
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); )
+            ids.add(it.next());
+        assertEquals(2, ids.size());
+        assertEquals(id2, (int) ids.get(0));
+        assertEquals(id1, (int) ids.get(1));
+
+        Database.getCatalog().clear();
+        assertNull(Database.getCatalog().getTableName(id2));
+        assertEquals(false, Database.getCatalog().tableIdIterator().hasNext());
+    }
+
+    /**
+     * Heap and B+ tree tables saved to a binary catalog come back with the
+     * same ids, names, keys, indexes and contents.
+     */
+    @Test public void binaryCatalogRoundTrip() throws Exception {
+        Database.getCatalog().clear();
+        ArrayList<ArrayList<Integer>> heapTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, heapTuples);
+        String heapName = Database.getCatalog().getTableName(hf.getId());
+        Database.getCatalog().setNumTuples(hf.getId(), 1000);
+        ArrayList<ArrayList<Integer>> treeTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, 1000, null, treeTuples, 1);
+        bf = new BTreeFile(bf.getFile(), 1, Utility.getTupleDesc(3, "field"));
+        String treeName = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(bf, treeName, "field1");
+
+        File catalog = File.createTempFile("catalog", ".bin");
+        catalog.deleteOnExit();
+        Database.getCatalog().saveSchema(catalog.getPath());
+        Database.getCatalog().clear();
+        Database.getCatalog().loadSchema(catalog.getPath());
+
+        assertEquals(hf.getId(), Database.getCatalog().getTableId(heapName));
+        assertEquals(1000, Database.getCatalog().getNumTuples(hf.getId()));
+        assertEquals(bf.getId(), Database.getCatalog().getTableId(treeName));
+        assertEquals("field1", Database.getCatalog().getPrimaryKey(bf.getId()));
+        assertEquals(Arrays.asList("field1"), Database.getCatalog().getIndexedFields(bf.getId()));
+        assertEquals(0, Database.getCatalog().getIndexedFields(hf.getId()).size());
+        assertEquals(-1, Database.getCatalog().getNumTuples(bf.getId()));
+
+        DbFile heap = Database.getCatalog().getDatabaseFile(hf.getId());
+        assertEquals(hf.getTupleDesc(), heap.getTupleDesc());
+        SystemTestUtil.matchTuples(heap, heapTuples);
+        BTreeFile tree = (BTreeFile) Database.getCatalog().getDatabaseFile(bf.getId());
+        assertEquals(1, tree.keyField());
+        SystemTestUtil.matchTuples(tree, treeTuples);
+    }
+
+    /**
+     * Invalid catalogs are reported with an IOException.
+     */
+    @Test public void invalidCatalogThrows() throws Exception {
+        File text = File.createTempFile("catalog", ".txt");
+        text.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(text);
+        out.write("t (a int, b float)\n".getBytes());
+        out.close();
+        try {
+            Database.getCatalog().loadSchema(text.getPath());
+            Assert.fail("Should not accept an unknown type");
+        } catch (IOException e) {
+            // Expected to get here
+        }
+
+        File binary = File.createTempFile("catalog", ".bin");
+        binary.deleteOnExit();
+        Database.getCatalog().clear();
+        Database.getCatalog().saveSchema(binary.getPath());
+        RandomAccessFile raf = new RandomAccessFile(binary, "rw");
+        raf.seek(4);
+        raf.writeInt(CatalogFile.VERSION + 1);
+        raf.close();
+        try {
+            Database.getCatalog().loadSchema(binary.getPath());
+            Assert.fail("Should not accept an unknown catalog version");
+        } catch (IOException e) {
+            // Expected to get here
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,89 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CheckpointTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("checkpoint", ".log");
+        file.deleteOnExit();
+        LogSegments.segmentFile(file, 0).deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    /**
+     * A checkpoint completes while another thread holds the BufferPool.
+     */
+    @Test(timeout = 10000) public void checkpointDoesNotStopThePool() throws Exception {
+        final BufferPool pool = Database.getBufferPool();
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                synchronized (pool) {
+                    held.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // 测试结束
+                    }
+                }
+            }
+        });
+        holder.start();
+        held.await();
+        try {
+            log.logCheckpoint();
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+    }
+
+    /**
+     * The checkpoint record lists the active transactions with their first
+     * record, and the dirty page table, which is empty once the pool has
+     * written everything out.
+     */
+    @Test public void checkpointRecordsTables() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCheckpoint();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        RandomAccessFile master = new RandomAccessFile(file, "r");
+        long cpLoc = master.readLong();
+        master.close();
+        DataInputStream in = log.readAt(cpLoc);
+        assertEquals(LogFile.CHECKPOINT_RECORD, in.readInt());
+        assertEquals(-1, in.readLong());
+        assertEquals(1, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        assertEquals(0, in.readLong());
+        assertEquals(0, in.readInt());
+        assertEquals(cpLoc, in.readLong());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private PageId p0, p1, p2;
+
+    /** Candidates that allow every page except the ones in pinned. */
+    private static class Unpinned implements EvictionPolicy.Candidates {
+        final Set<PageId> pinned = new HashSet<PageId>();
+
+        public boolean isEvictable(PageId pid) {
+            return !pinned.contains(pid);
+        }
+    }
+
+    private Unpinned candidates;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        p0 = new HeapPageId(-1, 0);
+        p1 = new HeapPageId(-1, 1);
+        p2 = new HeapPageId(-1, 2);
+        candidates = new Unpinned();
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a page referenced since the hand
+     * last passed gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy();
+        clock.pageLoaded(p0);
+        clock.pageLoaded(p1);
+        clock.pageLoaded(p2);
+        assertEquals(p0, clock.chooseVictim(candidates));
+        clock.pageRemoved(p0);
+
+        clock.pageAccessed(p1);
+        assertEquals(p2, clock.chooseVictim(candidates));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages touched fewer than K times go
+     * first, even if a hot page was last used longer ago.
+     */
+    @Test public void lruKPrefersColdPages() {
+        EvictionPolicy lruk = new LRUKEvictionPolicy(2);
+        lruk.pageLoaded(p0);
+        lruk.pageAccessed(p0);
+        lruk.pageLoaded(p1);
+        lruk.pageLoaded(p2);
+        assertEquals(p1, lruk.chooseVictim(candidates));
+        lruk.pageRemoved(p1);
+        assertEquals(p2, lruk.chooseVictim(candidates));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page read again soon after
+     * leaving A1in becomes hot, and new pages are evicted before it.
+     */
+    @Test public void twoQueuePromotesGhostHits() {
+        TwoQueueEvictionPolicy twoQ = new TwoQueueEvictionPolicy(4);
+        twoQ.pageLoaded(p0);
+        assertEquals(p0, twoQ.chooseVictim(candidates));
+        twoQ.pageRemoved(p0);
+
+        twoQ.pageLoaded(p0);
+        assertTrue(twoQ.isHot(p0));
+        twoQ.pageLoaded(p1);
+        twoQ.pageLoaded(p2);
+        assertEquals(p1, twoQ.chooseVictim(candidates));
+    }
+
+    /**
+     * Unit test for all policies: pages the BufferPool cannot evict are
+     * never chosen.
+     */
+    @Test public void respectsCandidates() {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(),
+                new LRUKEvictionPolicy(2), new TwoQueueEvictionPolicy(4) };
+        for (EvictionPolicy policy : policies) {
+            candidates.pinned.clear();
+            policy.pageLoaded(p0);
+            policy.pageLoaded(p1);
+            candidates.pinned.add(p0);
+            assertEquals(p1, policy.chooseVictim(candidates));
+            candidates.pinned.add(p1);
+            assertNull(policy.chooseVictim(candidates));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool counters: hits, misses and evictions are
+     * counted, and the policy keeps the page that is used repeatedly.
+     */
+    @Test public void bufferPoolCounters() throws Exception {
+        // about four pages of two-column tuples
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(hf.numPages() >= 3);
+        BufferPool bp = new BufferPool(2, new LRUKEvictionPolicy(2));
+        TransactionId tid = new TransactionId();
+        PageId h0 = new HeapPageId(hf.getId(), 0);
+        PageId h1 = new HeapPageId(hf.getId(), 1);
+        PageId h2 = new HeapPageId(hf.getId(), 2);
+
+        bp.getPage(tid, h0, Permissions.READ_ONLY);
+        bp.getPage(tid, h0, Permissions.READ_ONLY);
+        bp.getPage(tid, h1, Permissions.READ_ONLY);
+        bp.getPage(tid, h2, Permissions.READ_ONLY);
+        assertEquals(1, bp.getNumHits());
+        assertEquals(3, bp.getNumMisses());
+        assertEquals(1, bp.getNumEvictions());
+
+        bp.getPage(tid, h0, Permissions.READ_ONLY);
+        assertEquals(2, bp.getNumHits());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
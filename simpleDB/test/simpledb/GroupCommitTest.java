@@ -0,0 +1,170 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        LogSegments.segmentFile(f, 0).deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    private void commitOne() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+    }
+
+    /**
+     * A commit returns only once a force has covered it, and is counted
+     * in the metrics.
+     */
+    @Test public void commitIsForced() throws Exception {
+        commitOne();
+        commitOne();
+        assertEquals(2, log.getNumCommitBatches());
+        assertEquals(1.0, log.getAvgCommitBatchSize(), 0.0);
+        assertEquals(2, log.getCommitLatency().getCount());
+        assertEquals(4, log.getTotalRecords());
+    }
+
+    /**
+     * Concurrent committers all complete, and never need more fsyncs than
+     * there are commits.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int threads = 8;
+        final int commits = 50;
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++)
+                            commitOne();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * commits, log.getCommitLatency().getCount());
+        assertTrue(log.getNumCommitBatches() <= threads * commits);
+        assertEquals(threads * commits, log.getNumCommitBatches() * log.getAvgCommitBatchSize(), 0.001);
+        assertTrue(log.getMaxCommitBatchSize() >= 1);
+    }
+
+    // a log whose forces fail, as if the disk returned an fsync error
+    static class FailingLogFile extends LogFile {
+        FailingLogFile(File f) throws IOException {
+            super(f);
+        }
+
+        @Override
+        void forceBuffer() throws IOException {
+            throw new IOException("fsync failed");
+        }
+    }
+
+    private LogFile failingLog() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        LogSegments.segmentFile(f, 0).deleteOnExit();
+        return new FailingLogFile(f);
+    }
+
+    /**
+     * A failed force fails its committers and stops the log: later records
+     * are refused rather than becoming durable behind their backs.
+     */
+    @Test public void failedForceStopsTheLog() throws Exception {
+        log = failingLog();
+        try {
+            commitOne();
+            fail("commit should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        int records = log.getTotalRecords();
+        try {
+            commitOne();
+            fail("log should refuse records after a failed force");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(records, log.getTotalRecords());
+        assertEquals(0, log.getNumCommitBatches());
+    }
+
+    /**
+     * A transaction whose commit fails does not keep its locks, and its
+     * changes are rolled back: later transactions do not see them, whether
+     * its pages were written (FORCE) or only logged (NO FORCE).
+     */
+    @Test public void failedCommitRollsBack() throws Exception {
+        failCommit(false);
+        failCommit(true);
+    }
+
+    private void failCommit(boolean stealNoForce) throws Exception {
+        Database.reset();
+        Database.getBufferPool().setStealNoForce(stealNoForce);
+        File f = File.createTempFile("groupcommit", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        SystemTestUtil.insertRange(hf, 1, 10).commit();
+        Transaction t = SystemTestUtil.insertRange(hf, 11, 20);
+        PageId pid = new HeapPageId(hf.getId(), 0);
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), pid));
+
+        Database.resetLogFile(failingLog());
+        try {
+            t.commit();
+            fail("commit should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), pid));
+        TransactionId reader = new TransactionId();
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>();
+        for (int v = 1; v <= 10; v++)
+            committed.add(new ArrayList<Integer>(Arrays.asList(v, 0)));
+        SystemTestUtil.matchTuples(hf, reader, committed);
+        Database.reset();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
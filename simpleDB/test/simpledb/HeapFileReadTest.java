@@ -121,6 +121,35 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator(TransactionId, Predicate): pages with
+     * no matching tuple are skipped rather than ending the scan.
+     */
+    @Test
+    public void testIteratorPredicate() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 3 * 504,
+                null, tuples);
+        // the first tuple of the last page
+        int value = tuples.get(2 * 504).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(0) == value)
+                expected++;
+        }
+
+        DbFileIterator it = threePageFile.iterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(value)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(value, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        assertEquals(expected, count);
+        it.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate): only matching tuples are
+     * returned, whether they were decoded before or not.
+     */
+    @Test public void testIteratorPredicate() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        // decode the first tuple only
+        page.iterator().next();
+
+        Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+        Iterator<Tuple> it = page.iterator(pred);
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] <= 30000)
+                continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * A page that was only partly decoded serializes to the bytes it was
+     * read from.
+     */
+    @Test public void testPartialDecodeRoundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        it.next();
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.LockManager.LockMode;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockEscalationTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private LockManager lm;
+    private Object table;
+
+    /** A table of six pages, with escalation past three page locks. */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        assertEquals(6, hf.numPages());
+        bp = Database.getBufferPool();
+        bp.setLockEscalation(3);
+        lm = bp.getLockManager();
+        table = LockManager.tableKey(hf.getId());
+    }
+
+    /**
+     * Reading more pages than the threshold trades the page locks for an S
+     * lock on the table, which other readers share but writers wait for.
+     */
+    @Test public void readersEscalateToS() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getLockMode(table, tid));
+        assertEquals(4, lm.getNumLocksHeld(tid));
+
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        assertEquals(LockMode.S, lm.getLockMode(table, tid));
+        assertEquals(1, lm.getNumLocksHeld(tid));
+        assertEquals(1, bp.getNumEscalations());
+        assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+
+        TransactionId other = new TransactionId();
+        bp.getPage(other, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertFalse(lm.tryLock(table, other, LockMode.IX));
+        bp.transactionComplete(tid);
+        assertTrue(lm.tryLock(table, other, LockMode.IX));
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * A writer escalates to X, and may still read and write every page of
+     * the table without further locks.
+     */
+    @Test public void writersEscalateToX() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        for (int i = 1; i < 4; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(LockMode.X, lm.getLockMode(table, tid));
+        assertEquals(1, lm.getNumLocksHeld(tid));
+
+        bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_WRITE);
+        assertEquals(1, lm.getNumLocksHeld(tid));
+        assertFalse(lm.tryLock(table, new TransactionId(), LockMode.IS));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Escalation gives up while another transaction writes in the table,
+     * and the page locks stay.
+     */
+    @Test public void escalationWaitsForNoOne() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, new HeapPageId(hf.getId(), 5), Permissions.READ_WRITE);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getLockMode(table, tid));
+        assertEquals(6, lm.getNumLocksHeld(tid));
+        assertEquals(0, bp.getNumEscalations());
+        bp.transactionComplete(writer);
+        bp.transactionComplete(tid);
+    }
+
+    /** A scan of a table past the threshold locks the table and no pages. */
+    @Test public void largeScanLocksTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(3000, n);
+        assertEquals(LockMode.S, lm.getLockMode(table, tid));
+        assertEquals(1, lm.getNumLocksHeld(tid));
+        assertEquals(0, bp.getNumEscalations());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockEscalationTest.class);
+    }
+}
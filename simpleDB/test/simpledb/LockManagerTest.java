@@ -0,0 +1,242 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    /** Time to wait before checking whether a waiter is still parked, in ms */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId pid;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        pid = new HeapPageId(-1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * Thread that acquires a lock and records the order in which it was
+     * granted.
+     */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final boolean isShared;
+        final List<TransactionId> order;
+        volatile boolean acquired = false;
+
+        Acquirer(TransactionId tid, boolean isShared, List<TransactionId> order) {
+            this.tid = tid;
+            this.isShared = isShared;
+            this.order = order;
+        }
+
+        public void run() {
+            try {
+                if (lm.acquireLock(pid, tid, isShared, 0)) {
+                    acquired = true;
+                    order.add(tid);
+                }
+            } catch (InterruptedException e) {
+                // fall through; acquired stays false
+            }
+        }
+    }
+
+    /**
+     * Unit test for LockManager.acquireLock(): a blocked request times out
+     * and leaves no trace in the queue.
+     */
+    @Test public void timeout() throws Exception {
+        assertTrue(lm.acquireLock(pid, tid1, false, 0));
+        assertFalse(lm.acquireLock(pid, tid2, true, TIMEOUT));
+        assertFalse(lm.holdsLock(pid, tid2));
+
+        lm.releaseLock(pid, tid1);
+        assertTrue(lm.acquireLock(pid, tid2, false, TIMEOUT));
+    }
+
+    /**
+     * Unit test for LockManager.acquireLock(): waiters are granted in FIFO
+     * order, and a later shared request does not overtake a queued
+     * exclusive one.
+     */
+    @Test public void fifoGrantOrder() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        assertTrue(lm.acquireLock(pid, tid1, true, 0));
+
+        Acquirer writer = new Acquirer(tid2, false, order);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        Acquirer reader = new Acquirer(tid3, true, order);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+
+        // the reader is compatible with tid1 but must queue behind the writer
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseLock(pid, tid1);
+        writer.join(1000);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseLock(pid, tid2);
+        reader.join(1000);
+        assertTrue(reader.acquired);
+        assertEquals(Arrays.asList(tid2, tid3), order);
+    }
+
+    /**
+     * Unit test for LockManager.acquireLock(): an upgrade waits for the
+     * other shared holders and is served before ordinary waiters.
+     */
+    @Test public void upgradeJumpsQueue() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        assertTrue(lm.acquireLock(pid, tid1, true, 0));
+        assertTrue(lm.acquireLock(pid, tid2, true, 0));
+
+        Acquirer writer = new Acquirer(tid3, false, order);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        Acquirer upgrader = new Acquirer(tid1, false, order);
+        upgrader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(upgrader.acquired);
+
+        lm.releaseLock(pid, tid2);
+        upgrader.join(1000);
+        assertTrue(upgrader.acquired);
+        assertFalse(writer.acquired);
+
+        lm.releaseLock(pid, tid1);
+        writer.join(1000);
+        assertEquals(Arrays.asList(tid1, tid3), order);
+    }
+
+    /**
+     * Unit test for deadlock detection: a two-transaction cycle aborts the
+     * youngest transaction right away and lets the other one proceed.
+     */
+    @Test public void deadlockVictim() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        PageId pid2 = new HeapPageId(-1, 1);
+        assertTrue(lm.acquireLock(pid, tid1, true, 0));
+        assertTrue(lm.acquireLock(pid2, tid2, true, 0));
+
+        // tid1 waits for tid2 on pid2
+        Thread t1 = new Thread() {
+            public void run() {
+                try {
+                    if (lm.acquireLock(pid2, tid1, false, 0))
+                        order.add(tid1);
+                } catch (InterruptedException e) {
+                    // fall through
+                }
+            }
+        };
+        t1.start();
+        Thread.sleep(TIMEOUT);
+
+        // tid2 closes the cycle and, being younger, is the victim
+        assertFalse(lm.acquireLock(pid, tid2, false, 0));
+        assertEquals(1, lm.getDeadlockDetector().getNumDeadlocks());
+
+        lm.releaseLock(pid2, tid2);
+        t1.join(1000);
+        assertEquals(Arrays.asList(tid1), order);
+    }
+
+    /**
+     * Intention locks let two writers lock different tuples of one page,
+     * while a shared page lock waits for both; a holder's modes combine.
+     */
+    @Test public void intentionLocks() throws Exception {
+        RecordId r0 = new RecordId(pid, 0), r1 = new RecordId(pid, 1);
+        assertTrue(lm.acquireLock(pid, tid1, LockManager.LockMode.IX, 0));
+        assertTrue(lm.acquireLock(pid, tid2, LockManager.LockMode.IX, 0));
+        assertTrue(lm.acquireLock(r0, tid1, LockManager.LockMode.X, 0));
+        assertTrue(lm.acquireLock(r1, tid2, LockManager.LockMode.X, 0));
+        assertFalse(lm.tryLock(r0, tid2, LockManager.LockMode.X));
+        assertFalse(lm.acquireLock(pid, tid3, true, TIMEOUT));
+
+        assertTrue(lm.acquireLock(pid, tid1, LockManager.LockMode.IS, 0));
+        assertEquals(LockManager.LockMode.IX, lm.getLockMode(pid, tid1));
+        lm.releaseAllLocks(tid2);
+        assertTrue(lm.acquireLock(pid, tid1, true, 0));
+        assertEquals(LockManager.LockMode.SIX, lm.getLockMode(pid, tid1));
+        assertTrue(lm.tryLock(r1, tid3, LockManager.LockMode.X));
+    }
+
+    /**
+     * S and IX on a table combine into SIX, which lets other transactions
+     * hold only IS alongside it.
+     */
+    @Test public void sixLocks() throws Exception {
+        Object table = LockManager.tableKey(pid.getTableId());
+        assertTrue(lm.acquireLock(table, tid1, LockManager.LockMode.S, 0));
+        assertTrue(lm.acquireLock(table, tid1, LockManager.LockMode.IX, 0));
+        assertEquals(LockManager.LockMode.SIX, lm.getLockMode(table, tid1));
+        assertTrue(lm.tryLock(table, tid2, LockManager.LockMode.IS));
+        assertFalse(lm.tryLock(table, tid3, LockManager.LockMode.IX));
+        assertFalse(lm.tryLock(table, tid3, LockManager.LockMode.S));
+        assertTrue(LockManager.LockMode.SIX.covers(LockManager.LockMode.S));
+        assertFalse(LockManager.LockMode.SIX.covers(LockManager.LockMode.X));
+
+        lm.releaseAllLocks(tid2);
+        assertTrue(lm.acquireLock(table, tid1, LockManager.LockMode.X, 0));
+        assertEquals(LockManager.LockMode.X, lm.getLockMode(table, tid1));
+        assertFalse(lm.tryLock(table, tid2, LockManager.LockMode.IS));
+    }
+
+    /**
+     * The lock manager indexes the keys each transaction holds: releasing
+     * all of them leaves other transactions' locks alone, and the index
+     * empties as locks go away one by one too.
+     */
+    @Test public void lockIndex() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            assertTrue(lm.acquireLock(new HeapPageId(-2, i), tid2, true, 0));
+        RecordId rid = new RecordId(pid, 0);
+        Object table = LockManager.tableKey(pid.getTableId());
+        assertTrue(lm.acquireLock(table, tid1, LockManager.LockMode.IX, 0));
+        assertTrue(lm.acquireLock(pid, tid1, LockManager.LockMode.IX, 0));
+        assertTrue(lm.acquireLock(rid, tid1, LockManager.LockMode.X, 0));
+        assertTrue(lm.acquireLock(pid, tid1, true, 0));
+        assertEquals(3, lm.getNumLocksHeld(tid1));
+
+        lm.releaseAllLocks(tid1);
+        assertEquals(0, lm.getNumLocksHeld(tid1));
+        assertFalse(lm.holdsLock(rid, tid1));
+        assertEquals(1000, lm.getNumLocksHeld(tid2));
+        assertTrue(lm.tryLock(rid, tid3, LockManager.LockMode.X));
+
+        for (int i = 0; i < 1000; i++)
+            assertTrue(lm.releaseLock(new HeapPageId(-2, i), tid2));
+        assertEquals(0, lm.getNumLocksHeld(tid2));
+        assertTrue(lm.acquireLock(pid, tid2, true, 0));
+        assertEquals(1, lm.getNumLocksHeld(tid2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
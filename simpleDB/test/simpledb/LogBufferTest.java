@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        for (int i = 0; i < 8; i++)
+            LogSegments.segmentFile(file, i).deleteOnExit();
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++)
+            data[i] = (byte) (i * 31);
+        return data;
+    }
+
+    /**
+     * Bytes written across several buffers, and past the end of the ring,
+     * reach the file in order at the right positions.
+     */
+    @Test public void writesSpanBuffers() throws Exception {
+        LogSegments segments = new LogSegments(file);
+        segments.reset(8);
+        LogBuffer buffer = new LogBuffer(segments, 8);
+        byte[] data = bytes(LogBuffer.SIZE * 2 + 1000);
+        buffer.write(data, 0, 100);
+        buffer.write(data[100]);
+        buffer.write(data, 101, data.length - 101);
+        assertEquals(8 + data.length, buffer.position());
+        assertTrue(buffer.getWrittenPosition() > 8);
+        buffer.writeOut();
+        assertEquals(8 + data.length, buffer.getWrittenPosition());
+        assertEquals(3, buffer.getNumWrites());
+
+        byte[] back = new byte[data.length];
+        new DataInputStream(segments.inputStream(8)).readFully(back);
+        assertArrayEquals(data, back);
+        segments.close();
+    }
+
+    /**
+     * Writes are split over fixed-size segments and read back across them,
+     * and truncation deletes only the segments entirely before a position.
+     */
+    @Test public void segmentsSplitAndTruncate() throws Exception {
+        LogSegments segments = new LogSegments(file, 1000);
+        segments.reset(0);
+        byte[] data = bytes(3500);
+        ByteBuffer first = ByteBuffer.wrap(data, 0, 1500);
+        ByteBuffer second = ByteBuffer.wrap(data, 1500, 2000);
+        segments.write(new ByteBuffer[] { first, second }, 0);
+        segments.force();
+        assertEquals(3500, segments.end());
+        assertEquals(4, segments.numSegments());
+        assertEquals(1000, LogSegments.segmentFile(file, 2).length());
+
+        byte[] back = new byte[2000];
+        new DataInputStream(segments.inputStream(900)).readFully(back);
+        assertArrayEquals(java.util.Arrays.copyOfRange(data, 900, 2900), back);
+        InputStream tail = segments.inputStream(3499);
+        assertEquals(data[3499] & 0xff, tail.read());
+        assertEquals(-1, tail.read());
+
+        assertEquals(2, segments.truncateBefore(2500));
+        assertEquals(2000, segments.start());
+        assertTrue(!LogSegments.segmentFile(file, 1).exists());
+        new DataInputStream(segments.inputStream(2000)).readFully(back, 0, 1500);
+        segments.close();
+
+        // reopening finds the remaining segments
+        segments = new LogSegments(file, 1000);
+        assertEquals(2000, segments.start());
+        assertEquals(3500, segments.end());
+        segments.reset(0);
+        assertEquals(0, segments.numSegments());
+    }
+
+    /**
+     * Update records stay in the buffer until the log is forced up to them,
+     * and forcing to an LSN already on disk does nothing.
+     */
+    @Test public void forceToLSN() throws Exception {
+        LogFile log = new LogFile(file);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long first = log.logWrite(tid, page, page);
+        long second = log.logWrite(tid, page, page);
+        assertTrue(second > first);
+        assertEquals(0, log.getNumLogWrites());
+
+        log.forceTo(first);
+        assertEquals(1, log.getNumLogWrites());
+        assertTrue(LogSegments.segmentFile(file, 0).length() > second);
+        log.forceTo(second);
+        assertEquals(1, log.getNumLogWrites());
+    }
+
+    /**
+     * Heap and B+ tree page images are rebuilt from the log by their
+     * tables.
+     */
+    @Test public void pageImagesRoundTrip() throws Exception {
+        LogFile log = new LogFile(file);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        Page[] pages = {
+            hf.readPage(new HeapPageId(hf.getId(), 0)),
+            bf.readPage(new BTreePageId(bf.getId(), 0, BTreePageId.ROOT_PTR)),
+            bf.readPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF)),
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Page p : pages)
+            log.writePageData(out, p);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (Page p : pages) {
+            Page back = log.readPageData(in);
+            assertEquals(p.getClass(), back.getClass());
+            assertEquals(p.getId(), back.getId());
+            assertArrayEquals(p.getPageData(), back.getPageData());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
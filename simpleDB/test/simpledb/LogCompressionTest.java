@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogCompressionTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("logcompression", ".log");
+        file.deleteOnExit();
+        LogSegments.segmentFile(file, 0).deleteOnExit();
+    }
+
+    /**
+     * With compression on, update records are logged deflated, and read
+     * back intact as the records they replace.
+     */
+    @Test public void compressedRecordsRoundTrip() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage full = (HeapPage) hf.readPage(pid);
+        HeapPage one = new HeapPage(pid, HeapPage.createEmptyPageData());
+        one.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+
+        LogFile log = new LogFile(file);
+        log.setCompression(1);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long update = log.logWrite(tid, empty, full);
+        long delta = log.logWrite(tid, empty, one);
+        log.force();
+        assertTrue(delta - update < BufferPool.getPageSize());
+        assertTrue(log.getCompressionRatio() < 0.5);
+
+        LogFile.Record r = log.readRecord(log.readAt(update), update);
+        assertEquals(LogFile.UPDATE_RECORD, r.type);
+        assertEquals(pid, r.pid);
+        assertArrayEquals(empty.getPageData(), r.before);
+        assertArrayEquals(full.getPageData(), r.after);
+
+        r = log.readRecord(log.readAt(delta), delta);
+        assertEquals(LogFile.DELTA_RECORD, r.type);
+        assertArrayEquals(one.getPageData(), r.redo(empty.getPageData()));
+        assertArrayEquals(empty.getPageData(), r.undo(one.getPageData()));
+    }
+
+    /**
+     * Recovery reads compressed records, whatever the compression of the
+     * log it recovers with.
+     */
+    @Test public void recoverCompressedLog() throws Exception {
+        File table = File.createTempFile("logcompression", ".db");
+        table.deleteOnExit();
+        Database.reset();
+        HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getLogFile().setCompression(1);
+        SystemTestUtil.insertRange(hf, 1, 1000).commit();
+        SystemTestUtil.insertRange(hf, 1001, 1100);
+        assertTrue(Database.getLogFile().getCompressionRatio() < 1);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, table);
+        Database.getLogFile().recover();
+        assertEquals(1000, SystemTestUtil.countTuples(hf));
+    }
+
+    /**
+     * Benchmark: commit transactions that each insert a few tuples, with
+     * compression off and at the fastest and default deflate levels, and
+     * print the commit throughput and the bytes of log written.
+     * <p>
+     * Usage: LogCompressionTest [transactions] [tuples per transaction]
+     */
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int tuples = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int[] levels = { 0, 1, 6 }; // off, fastest, zlib's default
+        for (int level : levels) {
+            File table = File.createTempFile("logbench", ".db");
+            table.deleteOnExit();
+            Database.reset();
+            HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+            LogFile log = Database.getLogFile();
+            log.setCompression(level);
+            long begin = System.nanoTime();
+            for (int i = 0; i < transactions; i++)
+                SystemTestUtil.insertRange(hf, i * tuples, (i + 1) * tuples - 1).commit();
+            long nanos = System.nanoTime() - begin;
+            System.out.printf("level %d: %.0f commits/s, %d bytes of log, update records at %.1f%% of their size%n",
+                    level, transactions * 1e9 / nanos, log.currentOffset,
+                    log.getCompressionRatio() * 100);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogCompressionTest.class);
+    }
+}
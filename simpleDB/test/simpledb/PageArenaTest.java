@@ -0,0 +1,107 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, null);
+    }
+
+    /**
+     * Unit test for PageArena.put() and take(): an image comes back as the
+     * same page and only once, and the oldest image makes room when full.
+     */
+    @Test public void putAndTake() throws Exception {
+        PageArena arena = new PageArena(2, BufferPool.getPageSize());
+        HeapPage[] pages = new HeapPage[3];
+        for (int i = 0; i < 3; i++) {
+            pages[i] = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertTrue(arena.put(pages[i].getId(), pages[i].getPageData()));
+        }
+        assertEquals(2, arena.size());
+        assertNull(arena.take(pages[0].getId(), hf));
+
+        HeapPage back = (HeapPage) arena.take(pages[2].getId(), hf);
+        assertEquals(pages[2].getId(), back.getId());
+        assertTrue(java.util.Arrays.equals(pages[2].getPageData(), back.getPageData()));
+        assertNull(arena.take(pages[2].getId(), hf));
+
+        arena.remove(pages[1].getId());
+        assertEquals(0, arena.size());
+        assertFalse(arena.put(pages[0].getId(), new byte[BufferPool.getPageSize() + 1]));
+    }
+
+    /**
+     * Pages evicted from a small pool are read back from the arena instead
+     * of from disk.
+     */
+    @Test public void missesServedOffHeap() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10 * 504, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        BufferPool bp;
+        System.setProperty("simpledb.offHeapPages", "20");
+        try {
+            bp = Database.resetBufferPool(5);
+        } finally {
+            System.clearProperty("simpledb.offHeapPages");
+        }
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(table.numPages(), table.readCount);
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(table.numPages(), table.readCount);
+        assertTrue(bp.getNumOffHeapHits() > 0);
+    }
+
+    /**
+     * Discarding a page also drops its off-heap image.
+     */
+    @Test public void discardDropsImage() throws Exception {
+        BufferPool bp = new BufferPool(5, new ClockEvictionPolicy(), 20);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        bp.getArena().put(pid, hf.readPage(pid).getPageData());
+        bp.discardPage(pid);
+        assertEquals(0, bp.getArena().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private HeapPage before;
+    private HeapPage after;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        before = (HeapPage) hf.readPage(pid);
+        after = (HeapPage) hf.readPage(pid);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+    }
+
+    /**
+     * Inserting a tuple yields a delta of a few bytes, which redoes and
+     * undoes the insert.
+     */
+    @Test public void diffRedoUndo() throws Exception {
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+        assertTrue(delta.numRanges() >= 1);
+        assertTrue(delta.encodedSize() < 64);
+        assertArrayEquals(after.getPageData(), delta.redo(before.getPageData()));
+        assertArrayEquals(before.getPageData(), delta.undo(after.getPageData()));
+
+        assertEquals(0, PageDelta.diff(before.getPageData(), before.getPageData()).numRanges());
+        assertNull(PageDelta.diff(new byte[1], new byte[2]));
+    }
+
+    /**
+     * A delta survives being written and read back.
+     */
+    @Test public void writeRead() throws Exception {
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertEquals(delta.encodedSize(), bytes.size());
+
+        PageDelta back = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertArrayEquals(after.getPageData(), back.redo(before.getPageData()));
+    }
+
+    /**
+     * The log records a small update as a delta, whose size depends on the
+     * change rather than on the page size.
+     */
+    @Test public void smallUpdateLogsDelta() throws Exception {
+        File f = File.createTempFile("pagedelta", ".log");
+        f.deleteOnExit();
+        LogSegments.segmentFile(f, 0).deleteOnExit();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.logWrite(tid, before, after);
+        log.force();
+        assertTrue(LogSegments.segmentFile(f, 0).length() - start < 100);
+
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+        HeapPage redone = (HeapPage) log.applyDelta(before, delta, false);
+        assertEquals(before.getNumEmptySlots() - 1, redone.getNumEmptySlots());
+        HeapPage undone = (HeapPage) log.applyDelta(redone, delta, true);
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
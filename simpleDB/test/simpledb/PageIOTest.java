@@ -0,0 +1,227 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageIOTest extends SimpleDbTestBase {
+
+    private File file;
+    private PageIO.Handle io;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("pageio", ".dat");
+        file.deleteOnExit();
+        io = PageIO.open(file);
+    }
+
+    private static byte[] page(int size, int fill) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (fill + i);
+        return data;
+    }
+
+    /**
+     * Positional writes and reads land at the right offsets, and reads past
+     * the end of the file report it.
+     */
+    @Test public void positionalReadWrite() throws Exception {
+        io.write(100, page(50, 7));
+        io.write(0, page(100, 1));
+        assertEquals(150, file.length());
+
+        byte[] back = new byte[50];
+        assertEquals(50, io.read(100, ByteBuffer.wrap(back)));
+        assertArrayEquals(page(50, 7), back);
+
+        // a short read at the end of the file, then nothing
+        assertEquals(30, io.read(120, ByteBuffer.wrap(new byte[50])));
+        assertEquals(-1, io.read(150, ByteBuffer.wrap(new byte[50])));
+
+        io.append(page(10, 3));
+        assertEquals(160, file.length());
+        assertEquals(3, io.getWriteStats().getCount());
+        assertEquals(3, io.getReadStats().getCount());
+        assertTrue(PageIO.report().contains(file.getPath()));
+    }
+
+    /**
+     * Unit test for Handle.readPages(): a multi-page read is split into
+     * pages, and an incomplete last page is left out.
+     */
+    @Test public void readPagesSplits() throws Exception {
+        for (int i = 0; i < 3; i++)
+            io.write(i * 64, page(64, i * 10));
+        io.append(new byte[10]);
+
+        byte[][] pages = io.readPages(64, 64, 4);
+        assertEquals(2, pages.length);
+        assertArrayEquals(page(64, 10), pages[0]);
+        assertArrayEquals(page(64, 20), pages[1]);
+        assertEquals(0, io.readPages(1000, 64, 2).length);
+    }
+
+    /**
+     * Idle handles beyond the open file limit are closed, and reopened
+     * transparently when they are used again.
+     */
+    @Test public void closedHandleReopens() throws Exception {
+        ArrayList<PageIO.Handle> others = new ArrayList<PageIO.Handle>();
+        io.write(0, page(8, 1));
+        for (int i = 0; i < PageIO.MAX_OPEN + 1; i++) {
+            File f = File.createTempFile("pageio", ".dat");
+            f.deleteOnExit();
+            PageIO.Handle h = PageIO.open(f);
+            h.write(0, page(8, i));
+            others.add(h);
+        }
+        assertTrue(PageIO.getNumOpen() <= PageIO.MAX_OPEN);
+
+        byte[] back = new byte[8];
+        assertEquals(8, io.read(0, ByteBuffer.wrap(back)));
+        assertArrayEquals(page(8, 1), back);
+        for (PageIO.Handle h : others)
+            h.close();
+        io.close();
+    }
+
+    /**
+     * Handles closed or pushed out by the open file limit while they are in
+     * use still close their channels: every open channel counts against
+     * the limit.
+     */
+    @Test public void busyHandlesStayTracked() throws Exception {
+        final ArrayList<PageIO.Handle> handles = new ArrayList<PageIO.Handle>();
+        for (int i = 0; i < PageIO.MAX_OPEN + 16; i++) {
+            File f = File.createTempFile("pageio", ".dat");
+            f.deleteOnExit();
+            PageIO.Handle h = PageIO.open(f);
+            h.write(0, page(8, i));
+            handles.add(h);
+        }
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            final int seed = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random r = new Random(seed);
+                    try {
+                        for (int j = 0; j < 20000; j++) {
+                            PageIO.Handle h = handles.get(r.nextInt(handles.size()));
+                            if (seed == 0 && j % 10 == 0)
+                                h.close();
+                            else
+                                h.read(0, ByteBuffer.allocate(8));
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        int open = 0;
+        for (PageIO.Handle h : handles)
+            if (h.isOpen())
+                open++;
+        assertTrue(open + " open, " + PageIO.getNumOpen() + " tracked", open <= PageIO.getNumOpen());
+        assertTrue(PageIO.getNumOpen() <= PageIO.MAX_OPEN);
+        for (PageIO.Handle h : handles)
+            h.close();
+        for (PageIO.Handle h : handles)
+            assertFalse(h.isOpen());
+    }
+
+    /**
+     * Unit test for Handle.view(): views of the mapping see later writes, and
+     * the file is mapped again once it has grown.
+     */
+    @Test public void viewRemapsOnGrowth() throws Exception {
+        io.write(0, page(64, 1));
+        ByteBuffer v = io.view(0, 64);
+        byte[] back = new byte[64];
+        v.get(back);
+        assertArrayEquals(page(64, 1), back);
+        assertEquals(null, io.view(32, 64));
+
+        io.write(0, page(64, 5));
+        io.append(page(64, 9));
+        io.view(0, 64).get(back);
+        assertArrayEquals(page(64, 5), back);
+        io.view(64, 64).get(back);
+        assertArrayEquals(page(64, 9), back);
+    }
+
+    /**
+     * Memory mapped heap and B+ tree files return the same tuples, and see
+     * pages appended after they were mapped.
+     */
+    @Test public void mappedFilesMatchTuples() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, tuples);
+        hf.setMemoryMapped(true);
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        HeapPageId pid = new HeapPageId(hf.getId(), hf.numPages());
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        tuples.clear();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3 * 502, null, tuples, 0);
+        bf.setMemoryMapped(true);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(bf, tuples);
+    }
+
+    /**
+     * A mapped heap page reads its tuples out of the mapping without a heap
+     * copy, and keeps its before image when it is modified and written.
+     * Pages decoded from a buffer that may be reused are copied.
+     */
+    @Test public void mappedHeapPagesAreViews() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] onDisk = hf.readPage(pid).getPageData();
+        assertFalse(((HeapPage) hf.readPage(pid)).isMappedView());
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertTrue(page.isMappedView());
+        assertArrayEquals(onDisk, page.getPageData());
+        assertFalse(((HeapPage) hf.decodePage(pid, ByteBuffer.wrap(onDisk).asReadOnlyBuffer())).isMappedView());
+
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        assertArrayEquals(onDisk, page.getBeforeImage().getPageData());
+        assertEquals(1, page.getNumEmptySlots());
+        assertArrayEquals(page.getPageData(), hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageIOTest.class);
+    }
+}
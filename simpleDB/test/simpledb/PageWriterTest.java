@@ -0,0 +1,107 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    private static final int POOL = 10;
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 6000, null, null);
+        assertTrue(hf.numPages() >= POOL);
+        bp = Database.resetBufferPool(POOL);
+        tid = new TransactionId();
+    }
+
+    /** Dirty the given pages of the file on behalf of tid, in reverse order. */
+    private Page[] dirty(int n) throws Exception {
+        Page[] pages = new Page[n];
+        for (int i = n - 1; i >= 0; i--) {
+            pages[i] = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            pages[i].markDirty(true, tid);
+        }
+        return pages;
+    }
+
+    /**
+     * When too few pages are clean, the writer writes pages of completed
+     * transactions in page-number order, and only until enough are clean.
+     */
+    @Test(timeout = 10000) public void cleansCompletedPagesInOrder() throws Exception {
+        Page[] pages = dirty(POOL - 1);
+        for (int i = 0; i < pages.length - 1; i++)
+            bp.releasePage(tid, pages[i].getId());
+        assertTrue(bp.needsCleaning());
+
+        List<PageId> order = bp.pagesToClean();
+        for (int i = 0; i < order.size(); i++)
+            assertEquals(i, order.get(i).getPageNumber());
+
+        bp.getPageWriter().wake();
+        while (bp.needsCleaning())
+            Thread.sleep(10);
+        assertNull(pages[0].isDirty());
+        assertNotNull(pages[1].isDirty());
+        assertEquals(tid, pages[pages.length - 1].isDirty());
+        assertTrue(bp.getPageWriter().getNumWritten() >= 1);
+    }
+
+    /**
+     * Pages still locked by a running transaction are never written (NO
+     * STEAL), however dirty the pool is.
+     */
+    @Test public void skipsLockedPages() throws Exception {
+        Page[] pages = dirty(POOL - 1);
+        assertTrue(bp.needsCleaning());
+        assertFalse(bp.writeBackPage(pages[0].getId(), new TransactionId()));
+        bp.getPageWriter().wake();
+        Thread.sleep(200);
+        assertEquals(0, bp.getPageWriter().getNumWritten());
+        for (Page p : pages)
+            assertEquals(tid, p.isDirty());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A writer interrupted while it waits for a page lock gives up on the
+     * page, keeps its interrupt status and holds no locks afterwards.
+     */
+    @Test public void interruptedWriteKeepsInterrupt() throws Exception {
+        Page[] pages = dirty(1);
+        TransactionId writer = new TransactionId();
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(bp.writeBackPage(pages[0].getId(), writer));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, bp.getLockManager().getNumLocksHeld(writer));
+        assertEquals(tid, pages[0].isDirty());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private TransactionId tid;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * A sequential HeapFile scan gets pages read ahead of it, and no page is
+     * read twice whether the scan or the prefetcher gets to it first.
+     */
+    @Test public void heapScanPrefetches() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 20 * 504, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(table.numPages(), table.readCount);
+        assertEquals(table.numPages(), bp.getNumMisses() + bp.getNumPrefetched());
+    }
+
+    /**
+     * Unit test for Prefetcher.prefetchLeaves(): the leaves are found by
+     * following sibling pointers, and a scan afterwards finds them cached.
+     */
+    @Test public void prefetchLeavesFollowsSiblings() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20 * 502, null, tuples, 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeLeafPage first = bf.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null);
+        // count the other leaves straight from disk
+        int leaves = 0;
+        for (BTreePageId pid = first.getRightSiblingId(); pid != null;
+                pid = ((BTreeLeafPage) bf.readPage(pid)).getRightSiblingId())
+            leaves++;
+        assertTrue(leaves > 1);
+
+        bp.getPrefetcher().prefetchLeaves(bf, first.getRightSiblingId(), leaves, true, null);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getNumPrefetched() < leaves && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(leaves, bp.getNumPrefetched());
+
+        long misses = bp.getNumMisses();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+        assertEquals(misses, bp.getNumMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HeapFile.stagePages(): a page written after it was
+     * staged is read back from disk, not from the stale staged bytes.
+     */
+    @Test public void writeDropsStagedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2 * 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.stagePages(0, 2);
+
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        hf.writePage(empty);
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1))).getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class RowLockingTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private ArrayList<Tuple> rows;
+
+    /** A table of the rows 0..9, all on page 0. */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("rowlocking", ".db");
+        file.deleteOnExit();
+        Database.reset();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setRowLocking(true);
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = 0; v < 10; v++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { v, 0 }));
+        t.commit();
+        rows = scan();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().setRowLocking(false);
+    }
+
+    private ArrayList<Tuple> scan() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        t.commit();
+        return tuples;
+    }
+
+    private ArrayList<Integer> values() throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (Tuple tuple : scan())
+            values.add(((IntField) tuple.getField(0)).getValue());
+        Collections.sort(values);
+        return values;
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    /**
+     * Two transactions insert into and delete from the same page without
+     * waiting for each other; aborting one leaves the other's changes.
+     */
+    @Test(timeout = 10000) public void writersShareAPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t1 = begin(), t2 = begin();
+        bp.deleteTuple(t1.getId(), rows.get(0));
+        bp.deleteTuple(t2.getId(), rows.get(1));
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 100, 0 }));
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 200, 0 }));
+        PageId page = rows.get(0).getRecordId().getPageId();
+        assertEquals(LockManager.LockMode.IX, bp.getLockManager().getLockMode(page, t1.getId()));
+        assertEquals(LockManager.LockMode.IX, bp.getLockManager().getLockMode(page, t2.getId()));
+        // the slots freed by uncommitted deletes are not reused
+        assertEquals(1, hf.numPages());
+        assertFalse(bp.tryLockRow(t2.getId(), rows.get(0).getRecordId()));
+
+        t1.abort();
+        t2.commit();
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int v = 0; v < 10; v++)
+            if (v != 1)
+                expected.add(v);
+        expected.add(200);
+        assertEquals(expected, values());
+    }
+
+    /**
+     * Recovery undoes a loser's change to a page without undoing a
+     * winner's change to another tuple sharing its header byte.
+     */
+    @Test(timeout = 10000) public void recoveryUndoesOnlyTheLoser() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction winner = begin(), loser = begin();
+        bp.deleteTuple(loser.getId(), rows.get(2));
+        bp.deleteTuple(winner.getId(), rows.get(3));
+        winner.commit();
+        bp.flushAllPages(); // the loser's delete is on disk too
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int v = 0; v < 10; v++)
+            if (v != 3)
+                expected.add(v);
+        assertEquals(expected, values());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
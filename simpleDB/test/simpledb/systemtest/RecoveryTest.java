@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test STEAL/NO FORCE buffer management, relying on rollback and recovery.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Database.reset();
+        file = File.createTempFile("recovery", ".db");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setStealNoForce(true);
+    }
+
+    Transaction insert(int first, int last) throws Exception {
+        return SystemTestUtil.insertRange(hf, first, last);
+    }
+
+    int count() throws Exception {
+        return SystemTestUtil.countTuples(hf);
+    }
+
+    void crash() throws IOException {
+        crash(1);
+    }
+
+    void crash(int recoveryThreads) throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(recoveryThreads);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A commit forces only the log; the pages reach disk through recovery.
+     */
+    @Test public void commitForcesOnlyTheLog() throws Exception {
+        Transaction t = insert(1, 10);
+        t.commit();
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(onDisk.getNumEmptySlots(), onDisk.getBeforeImage().getNumEmptySlots());
+        assertTrue(Database.getBufferPool().getDirtyPageTable().size() > 0);
+
+        crash();
+        assertEquals(10, count());
+    }
+
+    /**
+     * A transaction dirtying more pages than the pool holds steals pages,
+     * and rolling it back undoes the stolen pages too.
+     */
+    @Test public void largeTransactionAborts() throws Exception {
+        Database.resetBufferPool(3).setStealNoForce(true);
+        insert(1, 5).commit();
+        Transaction t = insert(6, 3000);
+        assertTrue(hf.numPages() > 3);
+        t.abort();
+        assertEquals(5, count());
+
+        crash();
+        assertEquals(5, count());
+    }
+
+    /**
+     * Pages an abort puts back to their last logged image are written
+     * without logging the aborted transaction again.
+     */
+    @Test public void abortedPageWrittenWithoutLogging() throws Exception {
+        insert(1, 10).commit();
+        Transaction t = insert(11, 20);
+        t.abort();
+        Database.getBufferPool().flushAllPages();
+        assertFalse(Database.getLogFile().hasUpdates(t.getId()));
+        assertEquals(0, Database.getLogFile().getLogBytesWritten(t.getId()));
+        assertEquals(10, count());
+
+        crash();
+        assertEquals(10, count());
+    }
+
+    /**
+     * The stolen pages of a transaction that was running at the crash are
+     * rolled back, while committed pages that never reached disk are redone.
+     */
+    @Test public void crashUndoesLosersRedoesWinners() throws Exception {
+        Database.resetBufferPool(3).setStealNoForce(true);
+        insert(1, 1500).commit();
+        insert(1501, 3000);
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+        assertEquals(1500, count());
+
+        // recovery leaves a log that a second crash can recover from
+        insert(3001, 3010).commit();
+        crash();
+        assertEquals(1510, count());
+    }
+
+    /**
+     * Redo split among several threads replays the same history, and
+     * reports how fast it went.
+     */
+    @Test public void parallelRedo() throws Exception {
+        Database.resetBufferPool(3).setStealNoForce(true);
+        insert(1, 1500).commit();
+        insert(1501, 1600).commit();
+        insert(1601, 3000);
+
+        crash(4);
+        assertEquals(1600, count());
+        assertTrue(Database.getLogFile().getNumRedoRecords() > 0);
+        assertTrue(Database.getLogFile().getRedoRecordsPerSecond() > 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
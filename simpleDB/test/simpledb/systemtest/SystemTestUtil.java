@@ -146,6 +146,40 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * Insert the two-column tuples (v, 0) for v = first..last into f in a
+     * single transaction, which is returned uncommitted.
+     */
+    public static Transaction insertRange(DbFile f, int first, int last) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int v = first; v <= last; v++)
+            tuples.add(Utility.getHeapTuple(new int[] { v, 0 }));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), tuples), f.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        return t;
+    }
+
+    /** @return the number of tuples a committed scan of f sees */
+    public static int countTuples(DbFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM